@@ -0,0 +1,295 @@
+/*
+ * Copyright 2025 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.androiddeveloperverification.apkverifier
+
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.util.zip.CRC32
+import java.util.zip.DataFormatException
+import java.util.zip.Inflater
+
+class ApkFormatException(message: String) : IOException(message)
+
+/**
+ * Read-only view of an APK file.
+ *
+ * The file is memory-mapped, so only the pages that are looked at are read from disk: the end of
+ * central directory record, the central directory, the entries that are asked for and the APK
+ * Signing Block that sits right before the central directory. Nothing is extracted.
+ */
+internal class ApkArchive private constructor(private val data: ByteBuffer) {
+
+    private val centralDirectoryOffset: Int
+    private val centralDirectorySize: Int
+    private val entryCount: Int
+
+    private val signingBlock: Map<Int, ByteBuffer> by lazy { readSigningBlock() }
+
+    init {
+        val endOfCentralDirectory = findEndOfCentralDirectory()
+        entryCount = data.getUnsignedShort(endOfCentralDirectory + 10)
+        centralDirectorySize = data.getInt(endOfCentralDirectory + 12)
+        centralDirectoryOffset = data.getInt(endOfCentralDirectory + 16)
+        // ZIP64 archives store 0xFFFFFFFF here, which reads as a negative offset.
+        if (centralDirectoryOffset < 0 || centralDirectorySize < 0 ||
+            centralDirectoryOffset.toLong() + centralDirectorySize > endOfCentralDirectory
+        ) {
+            throw ApkFormatException("Central directory is out of bounds")
+        }
+    }
+
+    class Entry internal constructor(
+        val name: String,
+        internal val method: Int,
+        internal val crc: Int,
+        internal val compressedSize: Int,
+        internal val uncompressedSize: Int,
+        internal val localHeaderOffset: Int
+    )
+
+    /**
+     * Looks [name] up in the central directory.
+     */
+    fun findEntry(name: String): Entry? {
+        val wanted = name.toByteArray(Charsets.UTF_8)
+        val end = centralDirectoryOffset + centralDirectorySize
+        var offset = centralDirectoryOffset
+        repeat(entryCount) {
+            if (offset + CENTRAL_HEADER_SIZE > end ||
+                data.getInt(offset) != CENTRAL_HEADER_SIGNATURE
+            ) {
+                throw ApkFormatException("Corrupt central directory")
+            }
+            val nameLength = data.getUnsignedShort(offset + 28)
+            val extraLength = data.getUnsignedShort(offset + 30)
+            val commentLength = data.getUnsignedShort(offset + 32)
+            val next = offset + CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength
+            if (next > end) throw ApkFormatException("Central directory entry is out of bounds")
+            if (nameLength == wanted.size && regionEquals(offset + CENTRAL_HEADER_SIZE, wanted)) {
+                return Entry(
+                    name = name,
+                    method = data.getUnsignedShort(offset + 10),
+                    crc = data.getInt(offset + 16),
+                    compressedSize = data.getInt(offset + 20),
+                    uncompressedSize = data.getInt(offset + 24),
+                    localHeaderOffset = data.getInt(offset + 42)
+                )
+            }
+            offset = next
+        }
+        return null
+    }
+
+    /**
+     * Reads [entry], inflating it if needed, and checks its CRC. Entries that claim to be larger
+     * than [maxSize] are refused before anything is inflated.
+     */
+    fun read(entry: Entry, maxSize: Int): ByteArray {
+        if (entry.uncompressedSize !in 0..maxSize) {
+            throw ApkFormatException("${entry.name} is larger than $maxSize bytes")
+        }
+        val header = entry.localHeaderOffset
+        if (header < 0 || header + LOCAL_HEADER_SIZE > centralDirectoryOffset ||
+            data.getInt(header) != LOCAL_HEADER_SIGNATURE
+        ) {
+            throw ApkFormatException("Corrupt local header for ${entry.name}")
+        }
+        val start = header + LOCAL_HEADER_SIZE +
+            data.getUnsignedShort(header + 26) + data.getUnsignedShort(header + 28)
+        if (entry.compressedSize < 0 ||
+            start.toLong() + entry.compressedSize > centralDirectoryOffset
+        ) {
+            throw ApkFormatException("${entry.name} is out of bounds")
+        }
+        val compressed = data.sliceAt(start, entry.compressedSize)
+        val bytes = when (entry.method) {
+            METHOD_STORED -> {
+                if (entry.compressedSize != entry.uncompressedSize) {
+                    throw ApkFormatException("Stored entry ${entry.name} has inconsistent sizes")
+                }
+                ByteArray(entry.compressedSize).also { compressed.get(it) }
+            }
+            METHOD_DEFLATED -> inflate(entry, compressed)
+            else -> throw ApkFormatException(
+                "${entry.name} uses unsupported compression method ${entry.method}"
+            )
+        }
+        val crc = CRC32().apply { update(bytes) }
+        if (crc.value.toInt() != entry.crc) {
+            throw ApkFormatException("CRC mismatch in ${entry.name}")
+        }
+        return bytes
+    }
+
+    /**
+     * Returns the first certificate of the first signer in the block of the APK Signature Scheme
+     * identified by [schemeId], or null if the APK is not signed with that scheme.
+     *
+     * The v2 and v3 blocks share this layout: a sequence of signers, each starting with its
+     * signed data, which holds the digests and then the certificates. Every field is prefixed
+     * with its length. The signatures themselves are not checked here.
+     */
+    fun signerCertificate(schemeId: Int): ByteArray? {
+        val block = signingBlock[schemeId]?.duplicate()?.order(ByteOrder.LITTLE_ENDIAN)
+            ?: return null
+        val signers = block.getLengthPrefixed()
+        if (!signers.hasRemaining()) throw ApkFormatException("Signature block has no signers")
+        val signedData = signers.getLengthPrefixed().getLengthPrefixed()
+        signedData.getLengthPrefixed() // Digests.
+        val certificates = signedData.getLengthPrefixed()
+        if (!certificates.hasRemaining()) throw ApkFormatException("Signer has no certificate")
+        val certificate = certificates.getLengthPrefixed()
+        return ByteArray(certificate.remaining()).also { certificate.get(it) }
+    }
+
+    private fun findEndOfCentralDirectory(): Int {
+        val last = data.capacity() - END_OF_CENTRAL_DIRECTORY_SIZE
+        if (last < 0) throw ApkFormatException("Too short to be a ZIP archive")
+        // The record ends with a variable length comment, so search backwards for a signature
+        // whose comment length reaches exactly the end of the file.
+        for (offset in last downTo maxOf(0, last - MAX_COMMENT_SIZE)) {
+            if (data.getInt(offset) == END_OF_CENTRAL_DIRECTORY_SIGNATURE &&
+                data.getUnsignedShort(offset + 20) == last - offset
+            ) {
+                return offset
+            }
+        }
+        throw ApkFormatException("No end of central directory record")
+    }
+
+    /**
+     * Reads the ID-value pairs of the APK Signing Block, or nothing if the APK has none, like an
+     * APK that is only signed with JAR signing or not signed at all.
+     */
+    private fun readSigningBlock(): Map<Int, ByteBuffer> {
+        val end = centralDirectoryOffset
+        if (end < SIGNING_BLOCK_FOOTER_SIZE ||
+            data.getLong(end - 16) != SIGNING_BLOCK_MAGIC_LO ||
+            data.getLong(end - 8) != SIGNING_BLOCK_MAGIC_HI
+        ) {
+            return emptyMap()
+        }
+        // The size is stored at both ends of the block and counts everything but the first copy.
+        val blockSize = data.getLong(end - SIGNING_BLOCK_FOOTER_SIZE)
+        val start = end - blockSize - 8
+        if (blockSize < SIGNING_BLOCK_FOOTER_SIZE || start < 0 ||
+            data.getLong(start.toInt()) != blockSize
+        ) {
+            throw ApkFormatException("Corrupt APK Signing Block")
+        }
+        val pairs = data.sliceAt(start.toInt() + 8, (blockSize - SIGNING_BLOCK_FOOTER_SIZE).toInt())
+        val values = HashMap<Int, ByteBuffer>()
+        while (pairs.hasRemaining()) {
+            if (pairs.remaining() < 12) throw ApkFormatException("Truncated APK Signing Block")
+            val length = pairs.getLong()
+            if (length < 4 || length > pairs.remaining()) {
+                throw ApkFormatException("APK Signing Block entry is out of bounds")
+            }
+            val id = pairs.getInt()
+            values[id] = pairs.getSlice((length - 4).toInt())
+        }
+        return values
+    }
+
+    private fun inflate(entry: Entry, input: ByteBuffer): ByteArray {
+        val output = ByteArray(entry.uncompressedSize)
+        val inflater = Inflater(true)
+        try {
+            inflater.setInput(input)
+            var count = 0
+            while (count < output.size) {
+                val inflated = inflater.inflate(output, count, output.size - count)
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput())) break
+                count += inflated
+            }
+            if (count != output.size) {
+                throw ApkFormatException("${entry.name} is shorter than its declared size")
+            }
+        } catch (e: DataFormatException) {
+            throw ApkFormatException("${entry.name} is not valid DEFLATE data")
+        } finally {
+            inflater.end()
+        }
+        return output
+    }
+
+    private fun regionEquals(offset: Int, bytes: ByteArray): Boolean {
+        for (i in bytes.indices) {
+            if (data.get(offset + i) != bytes[i]) return false
+        }
+        return true
+    }
+
+    companion object {
+        private const val END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50
+        private const val CENTRAL_HEADER_SIGNATURE = 0x02014b50
+        private const val LOCAL_HEADER_SIGNATURE = 0x04034b50
+        private const val END_OF_CENTRAL_DIRECTORY_SIZE = 22
+        private const val CENTRAL_HEADER_SIZE = 46
+        private const val LOCAL_HEADER_SIZE = 30
+        private const val MAX_COMMENT_SIZE = 0xFFFF
+        private const val METHOD_STORED = 0
+        private const val METHOD_DEFLATED = 8
+
+        // "APK Sig Block 42", read as two little-endian longs.
+        private const val SIGNING_BLOCK_MAGIC_LO = 0x20676953204b5041L
+        private const val SIGNING_BLOCK_MAGIC_HI = 0x3234206b636f6c42L
+        private const val SIGNING_BLOCK_FOOTER_SIZE = 24
+
+        const val SIGNATURE_SCHEME_V2_ID = 0x7109871a
+        const val SIGNATURE_SCHEME_V3_ID = 0xf05368c0.toInt()
+
+        fun open(path: Path): ApkArchive =
+            FileChannel.open(path, StandardOpenOption.READ).use { channel ->
+                if (channel.size() > Int.MAX_VALUE) {
+                    throw ApkFormatException("APKs larger than 2 GiB are not supported")
+                }
+                // The mapping stays valid after the channel is closed.
+                ApkArchive(
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                        .order(ByteOrder.LITTLE_ENDIAN)
+                )
+            }
+    }
+}
+
+private fun ByteBuffer.getUnsignedShort(index: Int): Int = getShort(index).toInt() and 0xFFFF
+
+private fun ByteBuffer.sliceAt(offset: Int, length: Int): ByteBuffer =
+    duplicate().apply {
+        position(offset)
+        limit(offset + length)
+    }.slice().order(ByteOrder.LITTLE_ENDIAN)
+
+private fun ByteBuffer.getSlice(length: Int): ByteBuffer {
+    val slice = sliceAt(position(), length)
+    position(position() + length)
+    return slice
+}
+
+private fun ByteBuffer.getLengthPrefixed(): ByteBuffer {
+    if (remaining() < 4) throw ApkFormatException("Truncated length-prefixed field")
+    val length = getInt()
+    if (length < 0 || length > remaining()) {
+        throw ApkFormatException("Length-prefixed field is out of bounds")
+    }
+    return getSlice(length)
+}
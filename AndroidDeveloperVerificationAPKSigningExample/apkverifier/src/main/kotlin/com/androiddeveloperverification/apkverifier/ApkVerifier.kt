@@ -0,0 +1,131 @@
+/*
+ * Copyright 2025 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.androiddeveloperverification.apkverifier
+
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.charset.CharacterCodingException
+import java.nio.file.Path
+import java.security.MessageDigest
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+
+/**
+ * Checks built APKs before they are uploaded for Android developer verification.
+ *
+ * An APK passes if its `assets/adi-registration.properties` holds a single alphanumeric snippet
+ * token and it is signed with APK Signature Scheme v2 or v3. The SHA-256 digest of the signing
+ * certificate is reported, so that a batch of APKs can be checked for a consistent signer.
+ */
+class ApkVerifier(private val parallelism: Int = Runtime.getRuntime().availableProcessors()) {
+
+    class Result(
+        val apk: Path,
+        val token: String?,
+        /** SHA-256 digests of the first signer's certificate, by signature scheme. */
+        val certificateDigests: Map<String, String>,
+        val problems: List<String>
+    ) {
+        val isValid: Boolean
+            get() = problems.isEmpty()
+
+        /**
+         * The digest of the certificate the platform uses: v3 if present, as on Android 9 and
+         * later, otherwise v2.
+         */
+        val signerDigest: String?
+            get() = certificateDigests[SCHEME_V3] ?: certificateDigests[SCHEME_V2]
+    }
+
+    /**
+     * Verifies [apks] on up to [parallelism] threads, returning the results in the same order.
+     */
+    fun verifyAll(apks: List<Path>): List<Result> {
+        if (apks.isEmpty()) return emptyList()
+        val executor = Executors.newFixedThreadPool(minOf(parallelism, apks.size))
+        try {
+            return executor.invokeAll(apks.map { apk -> Callable { verify(apk) } })
+                .map { future ->
+                    try {
+                        future.get()
+                    } catch (e: ExecutionException) {
+                        throw e.cause ?: e
+                    }
+                }
+        } finally {
+            executor.shutdown()
+        }
+    }
+
+    fun verify(apk: Path): Result {
+        val problems = ArrayList<String>()
+        val certificateDigests = LinkedHashMap<String, String>()
+        var token: String? = null
+        try {
+            val archive = ApkArchive.open(apk)
+            val asset = archive.findEntry(REGISTRATION_ASSET)
+            if (asset == null) {
+                problems += "$REGISTRATION_ASSET is missing"
+            } else {
+                token = parseToken(archive.read(asset, MAX_ASSET_SIZE), problems)
+            }
+
+            archive.signerCertificate(ApkArchive.SIGNATURE_SCHEME_V2_ID)?.let {
+                certificateDigests[SCHEME_V2] = sha256(it)
+            }
+            archive.signerCertificate(ApkArchive.SIGNATURE_SCHEME_V3_ID)?.let {
+                certificateDigests[SCHEME_V3] = sha256(it)
+            }
+            if (certificateDigests.isEmpty()) {
+                problems += "Not signed with APK Signature Scheme v2 or v3"
+            }
+        } catch (e: IOException) {
+            problems += e.message ?: e.toString()
+        }
+        return Result(apk, token, certificateDigests, problems)
+    }
+
+    private fun parseToken(bytes: ByteArray, problems: MutableList<String>): String? {
+        val text = try {
+            Charsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(bytes)).toString()
+        } catch (e: CharacterCodingException) {
+            problems += "$REGISTRATION_ASSET is not valid UTF-8"
+            return null
+        }
+        val token = text.trim()
+        when {
+            token.isEmpty() -> problems += "$REGISTRATION_ASSET is empty"
+            !TOKEN_PATTERN.matches(token) ->
+                problems += "$REGISTRATION_ASSET must hold a single alphanumeric snippet token"
+            else -> return token
+        }
+        return null
+    }
+
+    private fun sha256(bytes: ByteArray): String =
+        MessageDigest.getInstance("SHA-256").digest(bytes)
+            .joinToString("") { "%02x".format(it) }
+
+    companion object {
+        const val REGISTRATION_ASSET = "assets/adi-registration.properties"
+        const val SCHEME_V2 = "v2"
+        const val SCHEME_V3 = "v3"
+        private const val MAX_ASSET_SIZE = 4096
+        private val TOKEN_PATTERN = Regex("[A-Za-z0-9]+")
+    }
+}
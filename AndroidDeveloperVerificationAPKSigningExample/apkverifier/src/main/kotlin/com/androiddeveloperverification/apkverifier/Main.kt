@@ -0,0 +1,88 @@
+/*
+ * Copyright 2025 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.androiddeveloperverification.apkverifier
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import kotlin.system.exitProcess
+
+private const val CERT_OPTION = "--cert-sha256="
+
+/**
+ * Verifies the APKs given as arguments, and every APK found in the directories given as arguments.
+ *
+ * With `--cert-sha256=<digest>`, every APK must also be signed with that certificate. Without it,
+ * all APKs must at least be signed with the same one. Exits with status 1 if any check fails.
+ */
+fun main(args: Array<String>) {
+    var expectedDigest: String? = null
+    val apks = ArrayList<Path>()
+    for (arg in args) {
+        if (arg.startsWith(CERT_OPTION)) {
+            expectedDigest = arg.removePrefix(CERT_OPTION).replace(":", "").lowercase()
+        } else {
+            collectApks(Paths.get(arg), apks)
+        }
+    }
+    if (apks.isEmpty()) {
+        System.err.println("No APKs to verify")
+        exitProcess(2)
+    }
+
+    val start = System.nanoTime()
+    val results = ApkVerifier().verifyAll(apks)
+    val elapsedMillis = (System.nanoTime() - start) / 1_000_000
+
+    var failed = false
+    for (result in results) {
+        val problems = ArrayList(result.problems)
+        val digest = result.signerDigest
+        if (expectedDigest != null && digest != null && digest != expectedDigest) {
+            problems += "Signed with $digest instead of $expectedDigest"
+        }
+        if (problems.isEmpty()) {
+            val digests = result.certificateDigests.entries.joinToString(" ") { (scheme, value) ->
+                "$scheme=$value"
+            }
+            println("OK   ${result.apk} token=${result.token} $digests")
+        } else {
+            failed = true
+            println("FAIL ${result.apk}: ${problems.joinToString("; ")}")
+        }
+    }
+
+    val signers = results.mapNotNull { it.signerDigest }.toSet()
+    if (expectedDigest == null && signers.size > 1) {
+        failed = true
+        println("FAIL APKs are signed with ${signers.size} different certificates: $signers")
+    }
+    println("Verified ${results.size} APKs in $elapsedMillis ms")
+    if (failed) exitProcess(1)
+}
+
+private fun collectApks(path: Path, apks: MutableList<Path>) {
+    if (!Files.isDirectory(path)) {
+        apks.add(path)
+        return
+    }
+    Files.walk(path).use { paths ->
+        paths.filter { Files.isRegularFile(it) && it.fileName.toString().endsWith(".apk") }
+            .sorted()
+            .forEach { apks.add(it) }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2025 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.androiddeveloperverification.apkverifier
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.file.Files
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.fail
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+class ApkArchiveTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val content = "The quick brown fox jumps over the lazy dog. ".repeat(20).toByteArray()
+
+    @Test
+    fun readsStoredEntry() {
+        val archive = open(TestApk().stored("a.txt", content).stored("b.txt", ByteArray(3)))
+        assertArrayEquals(content, archive.read(archive.findEntry("a.txt")!!, content.size))
+    }
+
+    @Test
+    fun readsDeflatedEntry() {
+        val archive = open(TestApk().stored("a.txt", ByteArray(3)).deflated("b.txt", content))
+        val entry = archive.findEntry("b.txt")!!
+        assertArrayEquals(content, archive.read(entry, content.size))
+    }
+
+    @Test
+    fun findsEndOfCentralDirectoryBeforeComment() {
+        val archive = open(TestApk().deflated("a.txt", content).comment("built by a test"))
+        assertArrayEquals(content, archive.read(archive.findEntry("a.txt")!!, content.size))
+    }
+
+    @Test
+    fun missingEntryIsNull() {
+        assertNull(open(TestApk().stored("a.txt", content)).findEntry("b.txt"))
+    }
+
+    @Test
+    fun refusesEntryLargerThanMaxSize() {
+        val archive = open(TestApk().deflated("a.txt", content))
+        assertFormatException { archive.read(archive.findEntry("a.txt")!!, content.size - 1) }
+    }
+
+    @Test
+    fun detectsCorruptStoredEntry() {
+        val bytes = TestApk().stored("a.txt", content).build()
+        // The stored content follows the 30 byte local header and the 5 byte name.
+        bytes[30 + 5] = (bytes[30 + 5] + 1).toByte()
+        val archive = ApkArchive.open(Files.write(folder.newFile().toPath(), bytes))
+        assertFormatException { archive.read(archive.findEntry("a.txt")!!, content.size) }
+    }
+
+    @Test
+    fun rejectsCentralDirectoryEntryWithOutOfBoundsName() {
+        val bytes = TestApk().stored("a.txt", content).build()
+        val buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN)
+        val centralDirectory = buffer.getInt(TestApk.findEndOfCentralDirectory(buffer) + 16)
+        // The name length would reach past the end of the central directory and of the file.
+        buffer.putShort(centralDirectory + 28, 0xFFFF.toShort())
+        val archive = ApkArchive.open(Files.write(folder.newFile().toPath(), bytes))
+        assertFormatException { archive.findEntry("a".repeat(0xFFFF)) }
+        assertFormatException { archive.findEntry("a.txt") }
+    }
+
+    @Test
+    fun rejectsFileThatIsNotZip() {
+        val path = Files.write(folder.newFile().toPath(), content)
+        assertFormatException { ApkArchive.open(path) }
+    }
+
+    @Test
+    fun readsSignerCertificates() {
+        val v2Certificate = byteArrayOf(1, 2, 3)
+        val v3Certificate = byteArrayOf(4, 5, 6, 7)
+        val archive = open(
+            TestApk().deflated("a.txt", content)
+                .signedWith(ApkArchive.SIGNATURE_SCHEME_V2_ID, v2Certificate)
+                .signedWith(ApkArchive.SIGNATURE_SCHEME_V3_ID, v3Certificate)
+        )
+        assertArrayEquals(
+            v2Certificate,
+            archive.signerCertificate(ApkArchive.SIGNATURE_SCHEME_V2_ID)
+        )
+        assertArrayEquals(
+            v3Certificate,
+            archive.signerCertificate(ApkArchive.SIGNATURE_SCHEME_V3_ID)
+        )
+        // Entries are still found once the central directory has moved.
+        assertNotNull(archive.findEntry("a.txt"))
+    }
+
+    @Test
+    fun unsignedArchiveHasNoCertificate() {
+        val archive = open(TestApk().stored("a.txt", content))
+        assertNull(archive.signerCertificate(ApkArchive.SIGNATURE_SCHEME_V2_ID))
+    }
+
+    @Test
+    fun rejectsSigningBlockWithMismatchedSizes() {
+        val bytes = TestApk().stored("a.txt", content)
+            .signedWith(ApkArchive.SIGNATURE_SCHEME_V2_ID, byteArrayOf(1))
+            .build()
+        // The first size field of the block directly follows the local entry.
+        val blockStart = 30 + 5 + content.size
+        bytes[blockStart] = (bytes[blockStart] + 1).toByte()
+        val archive = ApkArchive.open(Files.write(folder.newFile().toPath(), bytes))
+        assertFormatException { archive.signerCertificate(ApkArchive.SIGNATURE_SCHEME_V2_ID) }
+    }
+
+    private fun open(apk: TestApk): ApkArchive =
+        ApkArchive.open(apk.writeTo(folder.newFile().toPath()))
+
+    private fun assertFormatException(block: () -> Unit) {
+        try {
+            block()
+            fail("Expected an ApkFormatException")
+        } catch (expected: ApkFormatException) {
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2025 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.androiddeveloperverification.apkverifier
+
+import java.security.MessageDigest
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+class ApkVerifierTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val verifier = ApkVerifier(parallelism = 2)
+    private val v2Certificate = "v2 certificate".toByteArray()
+    private val v3Certificate = "v3 certificate".toByteArray()
+
+    @Test
+    fun acceptsSignedApkWithToken() {
+        val result = verify(
+            signedApk("AbC123\n")
+                .signedWith(ApkArchive.SIGNATURE_SCHEME_V3_ID, v3Certificate)
+        )
+        assertTrue(result.problems.toString(), result.isValid)
+        assertEquals("AbC123", result.token)
+        assertEquals(sha256(v2Certificate), result.certificateDigests[ApkVerifier.SCHEME_V2])
+        assertEquals(sha256(v3Certificate), result.signerDigest)
+    }
+
+    @Test
+    fun fallsBackToV2Signer() {
+        val result = verify(signedApk("token"))
+        assertTrue(result.problems.toString(), result.isValid)
+        assertEquals(sha256(v2Certificate), result.signerDigest)
+    }
+
+    @Test
+    fun readsStoredAsset() {
+        val result = verify(
+            TestApk().stored(ApkVerifier.REGISTRATION_ASSET, "token".toByteArray())
+                .signedWith(ApkArchive.SIGNATURE_SCHEME_V2_ID, v2Certificate)
+        )
+        assertTrue(result.problems.toString(), result.isValid)
+        assertEquals("token", result.token)
+    }
+
+    @Test
+    fun reportsUnsignedApk() {
+        val result = verify(
+            TestApk().deflated(ApkVerifier.REGISTRATION_ASSET, "token".toByteArray())
+        )
+        assertFalse(result.isValid)
+        assertEquals("token", result.token)
+        assertNull(result.signerDigest)
+    }
+
+    @Test
+    fun reportsMissingAsset() {
+        val result = verify(
+            TestApk().deflated("classes.dex", ByteArray(64))
+                .signedWith(ApkArchive.SIGNATURE_SCHEME_V2_ID, v2Certificate)
+        )
+        assertFalse(result.isValid)
+        assertNull(result.token)
+        assertEquals(sha256(v2Certificate), result.signerDigest)
+    }
+
+    @Test
+    fun reportsMalformedToken() {
+        for (token in listOf("", "two tokens", "token=value", "tök")) {
+            val result = verify(signedApk(token))
+            assertFalse(token, result.isValid)
+            assertNull(token, result.token)
+        }
+    }
+
+    @Test
+    fun reportsFileThatIsNotApk() {
+        val path = folder.newFile("not.apk").toPath()
+        val result = verifier.verify(path)
+        assertFalse(result.isValid)
+        assertEquals(1, result.problems.size)
+    }
+
+    @Test
+    fun verifyAllKeepsOrder() {
+        val apks = (0 until 5).map { index ->
+            signedApk("token$index").writeTo(folder.newFile("$index.apk").toPath())
+        }
+        val results = verifier.verifyAll(apks)
+        assertEquals(apks, results.map { it.apk })
+        assertEquals((0 until 5).map { "token$it" }, results.map { it.token })
+    }
+
+    private fun signedApk(token: String): TestApk =
+        TestApk().deflated("classes.dex", ByteArray(64))
+            .deflated(ApkVerifier.REGISTRATION_ASSET, token.toByteArray())
+            .signedWith(ApkArchive.SIGNATURE_SCHEME_V2_ID, v2Certificate)
+
+    private fun verify(apk: TestApk): ApkVerifier.Result =
+        verifier.verify(apk.writeTo(folder.newFile().toPath()))
+
+    private fun sha256(bytes: ByteArray): String =
+        MessageDigest.getInstance("SHA-256").digest(bytes).joinToString("") { "%02x".format(it) }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2025 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.androiddeveloperverification.apkverifier
+
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.zip.CRC32
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+
+/**
+ * Builds small APK-like archives for the tests: a ZIP with stored or deflated entries and,
+ * optionally, an APK Signing Block holding v2 and v3 signer blocks.
+ *
+ * The signer blocks only carry what [ApkArchive] reads, so their digests, signatures and public
+ * keys are empty and the certificates are arbitrary bytes.
+ */
+internal class TestApk {
+
+    private val entries = LinkedHashMap<String, Pair<ByteArray, Int>>()
+    private val signerCertificates = LinkedHashMap<Int, ByteArray>()
+    private var comment = ""
+
+    fun stored(name: String, content: ByteArray) = apply {
+        entries[name] = content to ZipEntry.STORED
+    }
+
+    fun deflated(name: String, content: ByteArray) = apply {
+        entries[name] = content to ZipEntry.DEFLATED
+    }
+
+    fun signedWith(schemeId: Int, certificate: ByteArray) = apply {
+        signerCertificates[schemeId] = certificate
+    }
+
+    fun comment(comment: String) = apply { this.comment = comment }
+
+    fun build(): ByteArray {
+        val zip = zip()
+        if (signerCertificates.isEmpty()) return zip
+        return insertSigningBlock(zip, signingBlock())
+    }
+
+    fun writeTo(path: Path): Path = Files.write(path, build())
+
+    private fun zip(): ByteArray {
+        val bytes = ByteArrayOutputStream()
+        ZipOutputStream(bytes).use { zip ->
+            for ((name, value) in entries) {
+                val (content, method) = value
+                val entry = ZipEntry(name)
+                entry.method = method
+                if (method == ZipEntry.STORED) {
+                    entry.size = content.size.toLong()
+                    entry.compressedSize = content.size.toLong()
+                    entry.crc = CRC32().apply { update(content) }.value
+                }
+                zip.putNextEntry(entry)
+                zip.write(content)
+                zip.closeEntry()
+            }
+            zip.setComment(comment)
+        }
+        return bytes.toByteArray()
+    }
+
+    private fun signingBlock(): ByteArray {
+        val pairs = ByteArrayOutputStream()
+        for ((schemeId, certificate) in signerCertificates) {
+            val signedData = lengthPrefixed(ByteArray(0)) + // Digests.
+                lengthPrefixed(lengthPrefixed(certificate)) + // Certificates.
+                lengthPrefixed(ByteArray(0)) // Additional attributes.
+            val signer = lengthPrefixed(signedData) +
+                lengthPrefixed(ByteArray(0)) + // Signatures.
+                lengthPrefixed(ByteArray(0)) // Public key.
+            val value = lengthPrefixed(lengthPrefixed(signer))
+            pairs.write(littleEndian(8) { putLong(4L + value.size) })
+            pairs.write(littleEndian(4) { putInt(schemeId) })
+            pairs.write(value)
+        }
+        val blockSize = pairs.size() + 24L
+        return littleEndian(8) { putLong(blockSize) } +
+            pairs.toByteArray() +
+            littleEndian(24) {
+                putLong(blockSize)
+                putLong(SIGNING_BLOCK_MAGIC_LO)
+                putLong(SIGNING_BLOCK_MAGIC_HI)
+            }
+    }
+
+    companion object {
+        private const val SIGNING_BLOCK_MAGIC_LO = 0x20676953204b5041L
+        private const val SIGNING_BLOCK_MAGIC_HI = 0x3234206b636f6c42L
+
+        /**
+         * Inserts [block] right before the central directory of [zip] and moves the central
+         * directory offset in the end of central directory record accordingly.
+         */
+        fun insertSigningBlock(zip: ByteArray, block: ByteArray): ByteArray {
+            val buffer = ByteBuffer.wrap(zip).order(ByteOrder.LITTLE_ENDIAN)
+            val endOfCentralDirectory = findEndOfCentralDirectory(buffer)
+            val centralDirectoryOffset = buffer.getInt(endOfCentralDirectory + 16)
+            val result = zip.copyOfRange(0, centralDirectoryOffset) + block +
+                zip.copyOfRange(centralDirectoryOffset, zip.size)
+            val movedEndOfCentralDirectory = endOfCentralDirectory + block.size
+            ByteBuffer.wrap(result).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(movedEndOfCentralDirectory + 16, centralDirectoryOffset + block.size)
+            return result
+        }
+
+        fun findEndOfCentralDirectory(zip: ByteBuffer): Int =
+            (zip.capacity() - 22 downTo 0).first { zip.getInt(it) == 0x06054b50 }
+
+        private fun lengthPrefixed(value: ByteArray): ByteArray =
+            littleEndian(4) { putInt(value.size) } + value
+
+        private fun littleEndian(size: Int, write: ByteBuffer.() -> Unit): ByteArray =
+            ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN).apply(write).array()
+    }
+}
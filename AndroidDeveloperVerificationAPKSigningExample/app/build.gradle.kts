@@ -14,10 +14,13 @@
  * limitations under the License.
  */
 
+import com.android.build.api.artifact.SingleArtifact
+
 plugins {
     alias(libs.plugins.android.application)
     alias(libs.plugins.kotlin.android)
     alias(libs.plugins.kotlin.compose)
+    alias(libs.plugins.androidx.baselineprofile)
 }
 
 android {
@@ -55,6 +58,41 @@ android {
     }
 }
 
+composeCompiler {
+    enableStrongSkippingMode = true
+    // Run with -PcomposeCompilerReports=true to check that every composable is skippable.
+    if (providers.gradleProperty("composeCompilerReports").orNull == "true") {
+        reportsDestination = layout.buildDirectory.dir("compose_compiler")
+        metricsDestination = layout.buildDirectory.dir("compose_compiler")
+    }
+}
+
+// Runs the :apkverifier tool on the packaged APKs of a variant, e.g. ./gradlew verifyDebugApk
+val apkVerifier: Configuration by configurations.creating {
+    isCanBeConsumed = false
+    attributes {
+        attribute(Usage.USAGE_ATTRIBUTE, objects.named(Usage::class.java, Usage.JAVA_RUNTIME))
+    }
+}
+
+androidComponents {
+    onVariants { variant ->
+        val apkDirectory = variant.artifacts.get(SingleArtifact.APK)
+        val taskName = "verify${variant.name.replaceFirstChar { it.uppercase() }}Apk"
+        tasks.register<JavaExec>(taskName) {
+            group = "verification"
+            description = "Checks adi-registration.properties and the signing certificate " +
+                "of the ${variant.name} APK."
+            classpath = apkVerifier
+            mainClass.set("com.androiddeveloperverification.apkverifier.MainKt")
+            inputs.dir(apkDirectory)
+            argumentProviders.add(CommandLineArgumentProvider {
+                listOf(apkDirectory.get().asFile.absolutePath)
+            })
+        }
+    }
+}
+
 dependencies {
 
     implementation(libs.androidx.core.ktx)
@@ -65,6 +103,7 @@ dependencies {
     implementation(libs.androidx.ui.graphics)
     implementation(libs.androidx.ui.tooling.preview)
     implementation(libs.androidx.material3)
+    implementation(libs.androidx.profileinstaller)
 
     testImplementation(libs.junit)
     androidTestImplementation(libs.androidx.junit)
@@ -73,4 +112,8 @@ dependencies {
     androidTestImplementation(libs.androidx.ui.test.junit4)
     debugImplementation(libs.androidx.ui.tooling)
     debugImplementation(libs.androidx.ui.test.manifest)
+
+    "baselineProfile"(project(":baselineprofile"))
+
+    apkVerifier(project(":apkverifier"))
 }
\ No newline at end of file
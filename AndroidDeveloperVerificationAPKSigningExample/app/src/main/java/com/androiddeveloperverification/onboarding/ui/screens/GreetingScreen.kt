@@ -16,6 +16,7 @@
 
 package com.androiddeveloperverification.onboarding.ui.screens
 
+import androidx.activity.compose.ReportDrawn
 import androidx.compose.foundation.layout.Box
 import androidx.compose.foundation.layout.fillMaxSize
 import androidx.compose.foundation.layout.padding
@@ -40,6 +41,8 @@ fun GreetingScreen(modifier: Modifier = Modifier) {
                 message = R.string.welcome_message,
                 modifier = Modifier.padding(horizontal = 16.dp)
             )
+            // Everything is on screen after the first frame, so startup ends there.
+            ReportDrawn()
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2025 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.androiddeveloperverification.baselineprofile
+
+import androidx.benchmark.macro.junit4.BaselineProfileRule
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.LargeTest
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Generates the baseline profile of the app from a cold start to its first screen.
+ *
+ * Run `./gradlew :app:generateBaselineProfile` with a device or emulator on Android 9 or later
+ * connected. The profile is written to `app/src/release/generated/baselineProfiles`, where it
+ * should be committed, and merged with `app/src/main/baseline-prof.txt` at build time.
+ */
+@RunWith(AndroidJUnit4::class)
+@LargeTest
+class BaselineProfileGenerator {
+
+    @get:Rule
+    val rule = BaselineProfileRule()
+
+    @Test
+    fun generate() {
+        rule.collect(
+            packageName = targetAppId(),
+            // The same code also makes up the startup profile, which orders the DEX file.
+            includeInStartupProfile = true
+        ) {
+            pressHome()
+            // Returns once the first frame of MainActivity is drawn.
+            startActivityAndWait()
+        }
+    }
+}
+
+internal fun targetAppId(): String =
+    InstrumentationRegistry.getArguments().getString("targetAppId")
+        ?: throw IllegalStateException("targetAppId not passed as an instrumentation argument")
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2025 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.androiddeveloperverification.baselineprofile
+
+import androidx.benchmark.macro.BaselineProfileMode
+import androidx.benchmark.macro.CompilationMode
+import androidx.benchmark.macro.StartupMode
+import androidx.benchmark.macro.StartupTimingMetric
+import androidx.benchmark.macro.junit4.MacrobenchmarkRule
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.LargeTest
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Measures cold startup of the app with and without its baseline profile.
+ *
+ * Run `./gradlew :baselineprofile:connectedBenchmarkReleaseAndroidTest` with a device connected,
+ * preferably a physical one. [StartupTimingMetric] reports `timeToInitialDisplayMs` and, since
+ * GreetingScreen reports when it is drawn, `timeToFullDisplayMs`. Startup with the profile should
+ * be faster than without it; if it is not, regenerate the profile with [BaselineProfileGenerator].
+ */
+@RunWith(AndroidJUnit4::class)
+@LargeTest
+class StartupBenchmark {
+
+    @get:Rule
+    val rule = MacrobenchmarkRule()
+
+    @Test
+    fun startupWithoutCompilation() = startup(CompilationMode.None())
+
+    @Test
+    fun startupWithBaselineProfile() =
+        startup(CompilationMode.Partial(baselineProfileMode = BaselineProfileMode.Require))
+
+    private fun startup(compilationMode: CompilationMode) {
+        rule.measureRepeated(
+            packageName = targetAppId(),
+            metrics = listOf(StartupTimingMetric()),
+            compilationMode = compilationMode,
+            startupMode = StartupMode.COLD,
+            iterations = ITERATIONS,
+            setupBlock = { pressHome() }
+        ) {
+            startActivityAndWait()
+        }
+    }
+
+    private companion object {
+        const val ITERATIONS = 10
+    }
+}
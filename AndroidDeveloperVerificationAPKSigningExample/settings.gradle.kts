@@ -21,3 +21,5 @@ dependencyResolutionManagement {
 
 rootProject.name = "AndroidDeveloperVerificationAPKSigningExample"
 include(":app")
+include(":apkverifier")
+include(":baselineprofile")
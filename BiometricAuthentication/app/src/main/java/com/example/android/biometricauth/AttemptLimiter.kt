@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.biometricauth
+
+import android.content.Context
+import android.os.SystemClock
+import android.util.Log
+import androidx.core.util.AtomicFile
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileNotFoundException
+import java.io.IOException
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Throttles failed authentication attempts, biometric and password alike.
+ *
+ * Once [maxFailures] attempts fail within [windowMillis], further attempts are refused for a
+ * lockout that starts at [baseLockoutMillis] and doubles with every lockout in a row, up to
+ * [maxLockoutMillis]. A successful authentication resets everything.
+ *
+ * The counters are lock-free, so [remainingLockoutMillis] can be consulted before every attempt,
+ * from any thread. The state is written to the file returned by [fileProvider] on [ioExecutor]
+ * whenever it changes and read back when the limiter is created, so killing the process does not
+ * reset a lockout. [fileProvider] is only called on [ioExecutor], as looking up an app directory
+ * can create it on disk, and [ioExecutor] must run tasks one at a time, in order.
+ *
+ * No method ever waits for the saved state, as they are called on the main thread. Until it has
+ * been read back, the limiter only knows about the attempts of this process: failures recorded
+ * meanwhile are merged with the saved ones, and may start a lockout once they are, while a
+ * success discards the saved state. [isLoaded] tells whether the saved state has been read back.
+ *
+ * Times come from [clock], which counts from boot and can not be changed by the user, unlike the
+ * wall clock. When the saved state is read back after a reboot or a change of the wall clock,
+ * [clock] and the saved times no longer line up. The saved times are then shifted as if no time had
+ * passed since they were written, so that changing the clock can only make a lockout last longer.
+ * Pass other clocks to test the limiter.
+ */
+class AttemptLimiter(
+        fileProvider: (() -> File)?,
+        private val ioExecutor: Executor = Executors.newSingleThreadExecutor(),
+        private val maxFailures: Int = DEFAULT_MAX_FAILURES,
+        private val windowMillis: Long = DEFAULT_WINDOW_MS,
+        private val baseLockoutMillis: Long = DEFAULT_BASE_LOCKOUT_MS,
+        private val maxLockoutMillis: Long = DEFAULT_MAX_LOCKOUT_MS,
+        private val clock: () -> Long = SystemClock::elapsedRealtime,
+        private val wallClock: () -> Long = System::currentTimeMillis
+) {
+
+    // The times of the last maxFailures failures; NO_TIME marks an empty slot.
+    private val failureTimes = AtomicLongArray(maxFailures)
+    private val consecutiveLockouts = AtomicInteger()
+    // Any time that has passed means no lockout, including 0.
+    private val lockedUntil = AtomicLong()
+    private val writeScheduled = AtomicBoolean()
+    private val file: Lazy<File>? = fileProvider?.let { lazy(it) }
+
+    /**
+     * Whether the saved state has been read back, or there is none.
+     */
+    @Volatile
+    var isLoaded = file == null
+        private set
+
+    // Guarded by this, and only consulted until the saved state is loaded.
+    private var resetBeforeLoad = false
+
+    init {
+        clearFailures()
+        if (file != null) ioExecutor.execute { load(file.value) }
+    }
+
+    /**
+     * How long attempts are still refused, or 0 if the next attempt is allowed.
+     */
+    fun remainingLockoutMillis(): Long = Math.max(0L, lockedUntil.get() - clock())
+
+    /**
+     * Records a failed attempt.
+     *
+     * @return how long attempts are now refused, or 0 if the next attempt is allowed
+     */
+    fun recordFailure(): Long {
+        val now = clock()
+        addFailure(now)
+        lockOutIfTooManyFailures(now)
+        scheduleWrite()
+        return remainingLockoutMillis()
+    }
+
+    fun recordSuccess() {
+        // A saved state that has not been loaded yet must be discarded, and overwritten.
+        val discardSaved = synchronized(this) {
+            if (!isLoaded) resetBeforeLoad = true
+            !isLoaded
+        }
+        if (!discardSaved && lockedUntil.get() == 0L && consecutiveLockouts.get() == 0 &&
+                failuresSince(NO_TIME) == 0) {
+            return // Nothing to reset, so nothing to write either.
+        }
+        consecutiveLockouts.set(0)
+        lockedUntil.set(0)
+        clearFailures()
+        scheduleWrite()
+    }
+
+    private fun lockOutIfTooManyFailures(now: Long) {
+        if (failuresSince(now - windowMillis) >= maxFailures) {
+            val lockouts = consecutiveLockouts.incrementAndGet()
+            val lockout = baseLockoutMillis shl Math.min(lockouts - 1, MAX_DOUBLINGS)
+            raiseLockedUntil(now + Math.min(lockout, maxLockoutMillis))
+            clearFailures()
+        }
+    }
+
+    /**
+     * Replaces the oldest failure with [time], unless [time] is older still, as a failure loaded
+     * from disk must not push out one recorded since.
+     */
+    private fun addFailure(time: Long) {
+        while (true) {
+            var oldest = 0
+            for (i in 1 until maxFailures) {
+                if (failureTimes.get(i) < failureTimes.get(oldest)) oldest = i
+            }
+            val oldestTime = failureTimes.get(oldest)
+            if (oldestTime >= time || failureTimes.compareAndSet(oldest, oldestTime, time)) return
+        }
+    }
+
+    private fun failuresSince(time: Long): Int {
+        var count = 0
+        for (i in 0 until maxFailures) {
+            if (failureTimes.get(i) > time) count++
+        }
+        return count
+    }
+
+    private fun clearFailures() {
+        for (i in 0 until maxFailures) failureTimes.set(i, NO_TIME)
+    }
+
+    private fun raiseLockedUntil(time: Long) {
+        while (true) {
+            val current = lockedUntil.get()
+            if (current >= time || lockedUntil.compareAndSet(current, time)) return
+        }
+    }
+
+    private fun scheduleWrite() {
+        if (file == null || !writeScheduled.compareAndSet(false, true)) return
+        ioExecutor.execute {
+            // Clear the flag first, so a change made while writing schedules another write.
+            writeScheduled.set(false)
+            write(file.value)
+        }
+    }
+
+    private fun write(file: File) {
+        val atomicFile = AtomicFile(file)
+        val output = atomicFile.startWrite()
+        try {
+            DataOutputStream(BufferedOutputStream(output)).let { data ->
+                val now = clock()
+                data.writeInt(MAGIC)
+                data.writeLong(now)
+                data.writeLong(wallClock() - now)
+                data.writeInt(consecutiveLockouts.get())
+                data.writeLong(lockedUntil.get())
+                data.writeInt(maxFailures)
+                for (i in 0 until maxFailures) data.writeLong(failureTimes.get(i))
+                data.flush()
+            }
+            atomicFile.finishWrite(output)
+        } catch (e: IOException) {
+            atomicFile.failWrite(output)
+            Log.w(TAG, "Failed to save attempt limiter state", e)
+        }
+    }
+
+    /**
+     * Merges the saved state into the attempts recorded since the limiter was created.
+     */
+    private fun load(file: File) {
+        val saved = read(file)
+        synchronized(this) {
+            if (saved != null && !resetBeforeLoad) {
+                val now = clock()
+                while (true) {
+                    val current = consecutiveLockouts.get()
+                    if (current >= saved.lockouts ||
+                            consecutiveLockouts.compareAndSet(current, saved.lockouts)) {
+                        break
+                    }
+                }
+                raiseLockedUntil(saved.lockedUntil)
+                for (time in saved.failureTimes) addFailure(time)
+                lockOutIfTooManyFailures(now)
+            }
+            isLoaded = true
+        }
+    }
+
+    private class SavedState(
+            val lockouts: Int,
+            val lockedUntil: Long,
+            val failureTimes: List<Long>
+    )
+
+    /**
+     * Reads the saved state, with its times shifted onto [clock], or returns null if there is none.
+     */
+    private fun read(file: File): SavedState? {
+        try {
+            DataInputStream(BufferedInputStream(AtomicFile(file).openRead())).use { data ->
+                if (data.readInt() != MAGIC) throw IOException("Not an attempt limiter file")
+                val savedAt = data.readLong()
+                val savedBootTime = data.readLong()
+                // Within the same boot, both clocks moved on together since the state was saved.
+                // Otherwise, resume from where the saved state left off.
+                val now = clock()
+                val sameBoot = now >= savedAt &&
+                        Math.abs(wallClock() - now - savedBootTime) <= BOOT_TIME_TOLERANCE_MS
+                val shift = if (sameBoot) 0L else now - savedAt
+                val lockouts = data.readInt()
+                val savedLockedUntil = data.readLong()
+                val failureTimes = ArrayList<Long>()
+                repeat(data.readInt()) {
+                    val time = data.readLong()
+                    if (time != NO_TIME) failureTimes += time + shift
+                }
+                return SavedState(
+                        lockouts,
+                        if (savedLockedUntil != 0L) savedLockedUntil + shift else 0L,
+                        failureTimes
+                )
+            }
+        } catch (e: FileNotFoundException) {
+            // Nothing was saved yet.
+        } catch (e: IOException) {
+            Log.w(TAG, "Ignoring unreadable attempt limiter state", e)
+        }
+        return null
+    }
+
+    companion object {
+        private const val TAG = "AttemptLimiter"
+        private const val MAGIC = 0x414C4D32 // "ALM2"
+        private const val FILENAME = "attempt_limiter"
+        private const val DEFAULT_MAX_FAILURES = 5
+        private const val DEFAULT_WINDOW_MS = 10 * 60 * 1000L
+        private const val DEFAULT_BASE_LOCKOUT_MS = 30 * 1000L
+        private const val DEFAULT_MAX_LOCKOUT_MS = 60 * 60 * 1000L
+        private const val MAX_DOUBLINGS = 20
+        private const val BOOT_TIME_TOLERANCE_MS = 5 * 1000L
+
+        // Marks an empty failure slot. Shifted times can be negative, so 0 can not be used.
+        private const val NO_TIME = Long.MIN_VALUE
+
+        @Volatile
+        private var instance: AttemptLimiter? = null
+
+        /**
+         * The limiter shared by every authentication method of the app.
+         */
+        fun getInstance(context: Context): AttemptLimiter =
+                instance ?: synchronized(this) {
+                    instance ?: create(context).also { instance = it }
+                }
+
+        /**
+         * Creates a limiter saved in the no-backup directory of [context]. Activities call this
+         * from onCreate, so the directory is only looked up on [ioExecutor].
+         */
+        internal fun create(
+                context: Context,
+                ioExecutor: Executor = Executors.newSingleThreadExecutor()
+        ): AttemptLimiter =
+                AttemptLimiter({ File(context.noBackupFilesDir, FILENAME) }, ioExecutor)
+    }
+}
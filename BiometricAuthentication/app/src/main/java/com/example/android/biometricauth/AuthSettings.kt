@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.biometricauth
+
+import android.content.Context
+import android.content.SharedPreferences
+import android.os.Handler
+import android.os.Looper
+import android.preference.PreferenceManager
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executors
+
+/**
+ * In-memory copy of the authentication settings, shared by every screen of the sample.
+ *
+ * The default SharedPreferences are only read and written on a background thread, so reading a
+ * setting never touches the disk on the UI thread. Until they are loaded, each setting reports its
+ * default value, and observers are told when the stored value arrives.
+ */
+class AuthSettings private constructor(context: Context) {
+
+    private val appContext = context.applicationContext
+    private val executor = Executors.newSingleThreadExecutor()
+    private val mainHandler = Handler(Looper.getMainLooper())
+
+    // Only touched on the executor thread.
+    private val sharedPreferences: SharedPreferences by lazy {
+        PreferenceManager.getDefaultSharedPreferences(appContext)
+    }
+
+    val useFingerprint = Setting(
+            appContext.getString(R.string.use_fingerprint_to_authenticate_key),
+            defaultValue = true,
+            read = SharedPreferences::getBoolean,
+            write = SharedPreferences.Editor::putBoolean
+    )
+
+    init {
+        useFingerprint.load()
+    }
+
+    /**
+     * A typed setting. Its value can be read from any thread, but must only be changed, and
+     * observed, on the UI thread.
+     */
+    inner class Setting<T>(
+            private val key: String,
+            defaultValue: T,
+            private val read: SharedPreferences.(String, T) -> T,
+            private val write: SharedPreferences.Editor.(String, T) -> SharedPreferences.Editor
+    ) {
+
+        @Volatile
+        var value: T = defaultValue
+            private set
+
+        private val observers = CopyOnWriteArrayList<(T) -> Unit>()
+        private var setByUser = false
+
+        /**
+         * Updates the value right away and stores it in the background.
+         */
+        fun set(newValue: T) {
+            setByUser = true
+            if (newValue != value) {
+                value = newValue
+                notifyObservers()
+            }
+            executor.execute { sharedPreferences.edit().write(key, newValue).apply() }
+        }
+
+        fun addObserver(observer: (T) -> Unit) {
+            observers.add(observer)
+        }
+
+        fun removeObserver(observer: (T) -> Unit) {
+            observers.remove(observer)
+        }
+
+        internal fun load() {
+            executor.execute {
+                val storedValue = sharedPreferences.read(key, value)
+                mainHandler.post {
+                    // A value set in the meantime wins over the one read from disk.
+                    if (!setByUser && storedValue != value) {
+                        value = storedValue
+                        notifyObservers()
+                    }
+                }
+            }
+        }
+
+        private fun notifyObservers() {
+            observers.forEach { it(value) }
+        }
+    }
+
+    companion object {
+        @Volatile
+        private var instance: AuthSettings? = null
+
+        fun getInstance(context: Context): AuthSettings =
+                instance ?: synchronized(this) {
+                    instance ?: AuthSettings(context).also { instance = it }
+                }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.biometricauth
+
+import android.os.SystemClock
+import android.util.Log
+import androidx.core.os.TraceCompat
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Records what happens during authentication without building log strings.
+ *
+ * Each event is three primitives written into preallocated arrays used as a ring, so recording
+ * allocates nothing, and nothing at all happens while tracing is disabled. Events never carry
+ * user data: only a type, a timestamp and a number such as an error code or a duration. Timed
+ * events also open a trace section named after the event, so they show up in Perfetto and
+ * systrace captures. Call [dump] to read the ring back, for instance from a debugger.
+ */
+object AuthTrace {
+
+    const val PROMPT_REQUESTED = 0
+    const val PROMPT_SHOWN = 1
+    const val AUTH_SUCCEEDED = 2
+    const val AUTH_FAILED = 3
+    /** The argument is the BiometricPrompt error code. */
+    const val AUTH_ERROR = 4
+    /** The argument of this and the following events is their duration in nanoseconds. */
+    const val CIPHER_INIT = 5
+    const val SIGNATURE_INIT = 6
+    const val ENCRYPT = 7
+    const val SIGN = 8
+
+    private val EVENT_NAMES = arrayOf(
+            "PromptRequested",
+            "PromptShown",
+            "AuthSucceeded",
+            "AuthFailed",
+            "AuthError",
+            "CipherInit",
+            "SignatureInit",
+            "Encrypt",
+            "Sign"
+    )
+
+    private const val TAG = "AuthTrace"
+    private const val CAPACITY = 256 // A power of two, so the ring index is a mask.
+
+    @Volatile
+    var isEnabled = BuildConfig.DEBUG
+
+    // Writers on different threads claim different slots, but a reader may see a slot that is
+    // still being written. That is fine for diagnostics.
+    private val timestamps = LongArray(CAPACITY)
+    private val types = IntArray(CAPACITY)
+    private val args = LongArray(CAPACITY)
+    private val next = AtomicInteger()
+
+    fun event(type: Int, arg: Long = 0L) {
+        if (!isEnabled) return
+        val slot = next.getAndIncrement() and (CAPACITY - 1)
+        timestamps[slot] = SystemClock.elapsedRealtimeNanos()
+        types[slot] = type
+        args[slot] = arg
+    }
+
+    /**
+     * Runs [block] inside a trace section and records its duration as a [type] event.
+     */
+    inline fun <T> section(type: Int, block: () -> T): T {
+        if (!isEnabled) return block()
+        val start = beginSection(type)
+        try {
+            return block()
+        } finally {
+            endSection(type, start)
+        }
+    }
+
+    @PublishedApi
+    internal fun beginSection(type: Int): Long {
+        TraceCompat.beginSection(EVENT_NAMES[type])
+        return SystemClock.elapsedRealtimeNanos()
+    }
+
+    @PublishedApi
+    internal fun endSection(type: Int, start: Long) {
+        TraceCompat.endSection()
+        event(type, SystemClock.elapsedRealtimeNanos() - start)
+    }
+
+    /**
+     * Formats the recorded events, oldest first. This is the only place that allocates.
+     */
+    fun dump(): String {
+        val end = next.get()
+        val builder = StringBuilder()
+        for (i in Math.max(0, end - CAPACITY) until end) {
+            val slot = i and (CAPACITY - 1)
+            builder.append(timestamps[slot]).append(' ')
+                    .append(EVENT_NAMES[types[slot]]).append(' ')
+                    .append(args[slot]).append('\n')
+        }
+        return builder.toString()
+    }
+
+    fun dumpToLog() {
+        Log.d(TAG, dump())
+    }
+}
@@ -18,9 +18,8 @@ package com.example.android.biometricauth
 
 import android.app.DialogFragment
 import android.content.Context
-import android.content.SharedPreferences
 import android.os.Bundle
-import android.preference.PreferenceManager
+import android.text.TextUtils
 import android.view.KeyEvent
 import android.view.LayoutInflater
 import android.view.View
@@ -33,16 +32,25 @@ import android.widget.TextView
 import androidx.biometric.BiometricPrompt
 
 /**
- * A dialog that lets users sign in with password.
+ * A dialog that lets users sign in with password. If no password has been set yet, it asks the
+ * user to choose one first, typed twice.
  */
 class FingerprintAuthenticationDialogFragment : DialogFragment(),
         TextView.OnEditorActionListener {
 
     private lateinit var passwordEditText: EditText
+    private lateinit var confirmPasswordEditText: EditText
+    private lateinit var passwordDescriptionTextView: TextView
     private lateinit var useFingerprintFutureCheckBox: CheckBox
+    private lateinit var secondDialogButton: Button
 
     private lateinit var callback: Callback
-    private lateinit var sharedPreferences: SharedPreferences
+    private lateinit var authSettings: AuthSettings
+    private lateinit var passwordVerifier: OfflinePasswordVerifier
+    private lateinit var attemptLimiter: AttemptLimiter
+    private var verifying = false
+    // Null until the verifier has told whether a password was set.
+    private var settingPassword: Boolean? = null
 
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
@@ -68,20 +76,42 @@ class FingerprintAuthenticationDialogFragment : DialogFragment(),
         cancelButton.setOnClickListener { dismiss() }
 
         passwordEditText = view.findViewById(R.id.password)
-        val secondDialogButton: Button = view.findViewById(R.id.second_dialog_button)
+        confirmPasswordEditText = view.findViewById(R.id.confirm_password)
+        passwordDescriptionTextView = view.findViewById(R.id.password_description)
+        secondDialogButton = view.findViewById(R.id.second_dialog_button)
         useFingerprintFutureCheckBox = view.findViewById(R.id.use_fingerprint_in_future_check)
 
         secondDialogButton.setText(R.string.ok)
 
         passwordEditText.setOnEditorActionListener(this)
+        confirmPasswordEditText.setOnEditorActionListener(this)
         secondDialogButton.setOnClickListener {
             verifyPassword()
         }
+
+        secondDialogButton.isEnabled = false
+        passwordVerifier.isEnrolled { enrolled ->
+            if (isAdded) showStage(settingPassword = !enrolled)
+        }
+    }
+
+    private fun showStage(settingPassword: Boolean) {
+        this.settingPassword = settingPassword
+        dialog.setTitle(getString(if (settingPassword) R.string.set_password else R.string.sign_in))
+        passwordDescriptionTextView.setText(
+                if (settingPassword) R.string.set_password_description
+                else R.string.password_description)
+        confirmPasswordEditText.visibility = if (settingPassword) View.VISIBLE else View.GONE
+        passwordEditText.imeOptions =
+                if (settingPassword) EditorInfo.IME_ACTION_NEXT else EditorInfo.IME_ACTION_GO
+        secondDialogButton.isEnabled = !verifying
     }
 
     override fun onAttach(context: Context) {
         super.onAttach(context)
-        sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context)
+        authSettings = AuthSettings.getInstance(context)
+        passwordVerifier = OfflinePasswordVerifier.getInstance(context)
+        attemptLimiter = AttemptLimiter.getInstance(context)
     }
 
     fun setCallback(callback: Callback) {
@@ -90,18 +120,79 @@ class FingerprintAuthenticationDialogFragment : DialogFragment(),
 
     /**
      * Checks whether the current entered password is correct, and dismisses the dialog and
-     * informs the activity about the result.
+     * informs the activity about the result. The password is hashed in the background.
      */
     private fun verifyPassword() {
-        if (!checkPassword(passwordEditText.text.toString())) {
+        val settingPassword = settingPassword ?: return
+        if (settingPassword) {
+            setPassword()
+            return
+        }
+        val password = passwordEditText.text
+        if (password.isEmpty() || verifying) {
+            return
+        }
+        if (attemptLimiter.remainingLockoutMillis() > 0) {
+            passwordEditText.error = getString(R.string.too_many_attempts)
+            return
+        }
+        verifying = true
+        secondDialogButton.isEnabled = false
+        // Copy the password into an array the verifier can wipe, rather than into a String.
+        val chars = CharArray(password.length)
+        password.getChars(0, chars.size, chars, 0)
+        passwordVerifier.verify(chars) { correct ->
+            verifying = false
+            if (!isAdded) return@verify
+            secondDialogButton.isEnabled = true
+            if (correct) {
+                attemptLimiter.recordSuccess()
+                onPasswordVerified()
+            } else {
+                val lockedOut = attemptLimiter.recordFailure() > 0
+                passwordEditText.error = getString(
+                        if (lockedOut) R.string.too_many_attempts else R.string.password_incorrect)
+            }
+        }
+    }
+
+    /**
+     * Sets the entered password once it has been typed the same way twice. The user then signs in
+     * with it like with any other password.
+     */
+    private fun setPassword() {
+        val password = passwordEditText.text
+        if (password.isEmpty() || verifying) {
+            return
+        }
+        if (password.length < MIN_PASSWORD_LENGTH) {
+            passwordEditText.error = getString(R.string.password_too_short, MIN_PASSWORD_LENGTH)
             return
         }
+        if (!TextUtils.equals(password, confirmPasswordEditText.text)) {
+            confirmPasswordEditText.error = getString(R.string.passwords_do_not_match)
+            return
+        }
+        verifying = true
+        secondDialogButton.isEnabled = false
+        val chars = CharArray(password.length)
+        password.getChars(0, chars.size, chars, 0)
+        passwordVerifier.enroll(chars) { enrolled ->
+            verifying = false
+            if (!isAdded) return@enroll
+            // If a password was set meanwhile, sign in with that one instead.
+            showStage(settingPassword = false)
+            passwordEditText.setText("")
+            confirmPasswordEditText.setText("")
+            if (enrolled) passwordDescriptionTextView.setText(R.string.password_set_description)
+        }
+    }
+
+    private fun onPasswordVerified() {
         if (useFingerprintFutureCheckBox.isChecked) {
-            sharedPreferences.edit()
-                    .putBoolean(getString(R.string.use_fingerprint_to_authenticate_key),
-                            useFingerprintFutureCheckBox.isChecked)
-                    .apply()
-            // Re-create the key so that fingerprints including new ones are validated.
+            authSettings.useFingerprint.set(true)
+            // Re-create the key if newly enrolled fingerprints invalidated it, so that they are
+            // validated from now on. This happens in the background.
             callback.createKey(DEFAULT_KEY_NAME)
         }
         passwordEditText.setText("")
@@ -109,17 +200,6 @@ class FingerprintAuthenticationDialogFragment : DialogFragment(),
         dismiss()
     }
 
-    /**
-     * Checks if the given password is valid. Assume that the password is always correct.
-     * In a real world situation, the password needs to be verified via the server.
-     *
-     * @param password The password String
-     *
-     * @return true if `password` is correct, false otherwise
-     */
-    private fun checkPassword(password: String) = password.isNotEmpty()
-
-
     override fun onEditorAction(v: TextView, actionId: Int, event: KeyEvent?): Boolean {
         return if (actionId == EditorInfo.IME_ACTION_GO) {
             verifyPassword(); true
@@ -130,4 +210,8 @@ class FingerprintAuthenticationDialogFragment : DialogFragment(),
         fun onPurchased(withBiometrics: Boolean, crypto: BiometricPrompt.CryptoObject? = null)
         fun createKey(keyName: String, invalidatedByBiometricEnrollment: Boolean = true)
     }
+
+    companion object {
+        private const val MIN_PASSWORD_LENGTH = 6
+    }
 }
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.biometricauth
+
+import android.security.keystore.KeyGenParameterSpec
+import android.security.keystore.KeyInfo
+import android.security.keystore.KeyProperties
+import android.security.keystore.KeyProperties.BLOCK_MODE_GCM
+import android.security.keystore.KeyProperties.ENCRYPTION_PADDING_NONE
+import android.security.keystore.KeyProperties.KEY_ALGORITHM_AES
+import android.util.Log
+import java.io.IOException
+import java.security.InvalidAlgorithmParameterException
+import java.security.Key
+import java.security.KeyPair
+import java.security.KeyPairGenerator
+import java.security.KeyStore
+import java.security.KeyStoreException
+import java.security.NoSuchAlgorithmException
+import java.security.NoSuchProviderException
+import java.security.PrivateKey
+import java.security.UnrecoverableKeyException
+import java.security.cert.CertificateException
+import java.security.spec.ECGenParameterSpec
+import java.security.spec.InvalidKeySpecException
+import javax.crypto.KeyGenerator
+import javax.crypto.SecretKey
+import javax.crypto.SecretKeyFactory
+
+/**
+ * How a purchase key must be set up. A stored key that does not match its policy is replaced.
+ */
+data class KeyPolicy(
+        val invalidatedByBiometricEnrollment: Boolean,
+        val blockMode: String = BLOCK_MODE_GCM,
+        val encryptionPadding: String = ENCRYPTION_PADDING_NONE,
+        val userAuthenticationRequired: Boolean = true
+)
+
+/**
+ * Creates purchase keys in the Android Key Store only when they are needed: when a key does not
+ * exist yet, when it was permanently invalidated (for instance because a new fingerprint was
+ * enrolled), or when the stored key no longer matches the [KeyPolicy] it is requested with.
+ *
+ * Every generated key gets a new version, and [generationCount] counts the keys generated by this
+ * process, so a launch that reuses the existing keys can be told apart from one that recreates
+ * them.
+ *
+ * There is a single [instance] per process, which loads the Android Key Store once. It is safe to
+ * use from any thread, but since keystore operations can be slow, keep it off the UI thread.
+ */
+class KeyLifecycleManager private constructor() {
+
+    // A synchronized lazy, so the keystore is loaded exactly once even if threads race for it.
+    private val keyStore: KeyStore by lazy {
+        try {
+            KeyStore.getInstance(ANDROID_KEY_STORE).apply { load(null) }
+        } catch (e: Exception) {
+            when (e) {
+                is KeyStoreException,
+                is NoSuchAlgorithmException,
+                is CertificateException,
+                is IOException -> throw RuntimeException("Failed to load the KeyStore", e)
+                else -> throw e
+            }
+        }
+    }
+
+    private val keyGenerator: KeyGenerator by lazy {
+        try {
+            KeyGenerator.getInstance(KEY_ALGORITHM_AES, ANDROID_KEY_STORE)
+        } catch (e: Exception) {
+            when (e) {
+                is NoSuchAlgorithmException,
+                is NoSuchProviderException ->
+                    throw RuntimeException("Failed to get an instance of KeyGenerator", e)
+                else -> throw e
+            }
+        }
+    }
+
+    /** The policy each key was last checked against, so that KeyInfo is only read once. */
+    private val verifiedPolicies = HashMap<String, KeyPolicy>()
+    private val invalidatedKeys = HashSet<String>()
+    private val keyVersions = HashMap<String, Int>()
+
+    /**
+     * Number of keys generated by this process.
+     */
+    @get:Synchronized
+    var generationCount = 0
+        private set
+
+    /**
+     * Returns the key named [keyName], generating it only if it is missing, was reported through
+     * [onKeyPermanentlyInvalidated], or does not match [policy].
+     */
+    @Synchronized
+    fun getOrCreateKey(keyName: String, policy: KeyPolicy): SecretKey {
+        if (keyName !in invalidatedKeys && verifiedPolicies[keyName] == policy) {
+            getKey(keyName)?.let { return it }
+        }
+
+        val existingKey = if (keyName in invalidatedKeys) null else getKey(keyName)
+        if (existingKey != null) {
+            if (existingKey.matches(policy)) {
+                verifiedPolicies[keyName] = policy
+                return existingKey
+            }
+            // Keystore keys can not be exported, so a key created with older settings, such as a
+            // legacy AES/CBC purchase key, is migrated by replacing it under the same alias.
+            if (BuildConfig.DEBUG) Log.d(TAG, "Key $keyName does not match $policy, replacing it")
+        }
+        return generateKey(keyName, policy)
+    }
+
+    /**
+     * Returns the EC key pair named [keyName] used to sign purchases, generating it if it is
+     * missing or was reported through [onKeyPermanentlyInvalidated]. The private key can only be
+     * used once the user authenticated with a fingerprint, for a single signature.
+     */
+    @Synchronized
+    fun getOrCreateSigningKeyPair(keyName: String): KeyPair {
+        if (keyName !in invalidatedKeys) {
+            val privateKey = loadKey(keyName) as PrivateKey?
+            if (privateKey != null) {
+                return KeyPair(keyStore.getCertificate(keyName).publicKey, privateKey)
+            }
+        }
+
+        val keyPair = try {
+            val builder = KeyGenParameterSpec.Builder(keyName, KeyProperties.PURPOSE_SIGN)
+                    .setAlgorithmParameterSpec(ECGenParameterSpec(EC_CURVE))
+                    .setDigests(KeyProperties.DIGEST_SHA256)
+                    .setUserAuthenticationRequired(true)
+
+            KeyPairGenerator.getInstance(KeyProperties.KEY_ALGORITHM_EC, ANDROID_KEY_STORE).run {
+                initialize(builder.build())
+                generateKeyPair()
+            }
+        } catch (e: Exception) {
+            when (e) {
+                is NoSuchAlgorithmException,
+                is NoSuchProviderException,
+                is InvalidAlgorithmParameterException -> throw RuntimeException(e)
+                else -> throw e
+            }
+        }
+        onKeyGenerated(keyName)
+        return keyPair
+    }
+
+    /**
+     * Marks the key named [keyName] to be regenerated the next time it is requested. Call this
+     * when initializing a Cipher with it throws a KeyPermanentlyInvalidatedException.
+     */
+    @Synchronized
+    fun onKeyPermanentlyInvalidated(keyName: String) {
+        if (BuildConfig.DEBUG) Log.d(TAG, "Key $keyName was permanently invalidated")
+        invalidatedKeys.add(keyName)
+        verifiedPolicies.remove(keyName)
+    }
+
+    /**
+     * Version of the key named [keyName] generated by this process, or 0 if the key in use was
+     * generated by an earlier one.
+     */
+    @Synchronized
+    fun getKeyVersion(keyName: String): Int = keyVersions[keyName] ?: 0
+
+    private fun getKey(keyName: String): SecretKey? = loadKey(keyName) as SecretKey?
+
+    private fun loadKey(keyName: String): Key? {
+        try {
+            return keyStore.getKey(keyName, null)
+        } catch (e: Exception) {
+            when (e) {
+                is KeyStoreException,
+                is NoSuchAlgorithmException,
+                is UnrecoverableKeyException -> throw RuntimeException("Failed to get key", e)
+                else -> throw e
+            }
+        }
+    }
+
+    private fun SecretKey.matches(policy: KeyPolicy): Boolean {
+        val keyInfo = try {
+            val factory = SecretKeyFactory.getInstance(algorithm, ANDROID_KEY_STORE)
+            factory.getKeySpec(this, KeyInfo::class.java) as KeyInfo
+        } catch (e: Exception) {
+            when (e) {
+                is NoSuchAlgorithmException,
+                is NoSuchProviderException,
+                is InvalidKeySpecException -> return false
+                else -> throw e
+            }
+        }
+        return keyInfo.blockModes.contentEquals(arrayOf(policy.blockMode))
+                && keyInfo.encryptionPaddings.contentEquals(arrayOf(policy.encryptionPadding))
+                && keyInfo.isUserAuthenticationRequired == policy.userAuthenticationRequired
+                && keyInfo.isInvalidatedByBiometricEnrollment ==
+                policy.invalidatedByBiometricEnrollment
+    }
+
+    private fun generateKey(keyName: String, policy: KeyPolicy): SecretKey {
+        // The enrolling flow for fingerprint. This is where you ask the user to set up fingerprint
+        // for your flow. Use of keys is necessary if you need to know if the set of enrolled
+        // fingerprints has changed.
+        val key = try {
+            val keyProperties = KeyProperties.PURPOSE_ENCRYPT or KeyProperties.PURPOSE_DECRYPT
+            val builder = KeyGenParameterSpec.Builder(keyName, keyProperties)
+                    .setBlockModes(policy.blockMode)
+                    .setUserAuthenticationRequired(policy.userAuthenticationRequired)
+                    .setEncryptionPaddings(policy.encryptionPadding)
+                    .setInvalidatedByBiometricEnrollment(policy.invalidatedByBiometricEnrollment)
+
+            keyGenerator.run {
+                init(builder.build())
+                generateKey()
+            }
+        } catch (e: InvalidAlgorithmParameterException) {
+            throw RuntimeException(e)
+        }
+
+        verifiedPolicies[keyName] = policy
+        onKeyGenerated(keyName)
+        return key
+    }
+
+    private fun onKeyGenerated(keyName: String) {
+        invalidatedKeys.remove(keyName)
+        val version = (keyVersions[keyName] ?: 0) + 1
+        keyVersions[keyName] = version
+        generationCount++
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Generated key $keyName version $version ($generationCount this process)")
+        }
+    }
+
+    companion object {
+        private const val ANDROID_KEY_STORE = "AndroidKeyStore"
+        private const val EC_CURVE = "secp256r1"
+        private const val TAG = "KeyLifecycleManager"
+
+        val instance: KeyLifecycleManager by lazy { KeyLifecycleManager() }
+    }
+}
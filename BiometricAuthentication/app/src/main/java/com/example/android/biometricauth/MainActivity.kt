@@ -17,15 +17,7 @@
 package com.example.android.biometricauth
 
 import android.content.Intent
-import android.content.SharedPreferences
 import android.os.Bundle
-import android.preference.PreferenceManager
-import android.security.keystore.KeyGenParameterSpec
-import android.security.keystore.KeyPermanentlyInvalidatedException
-import android.security.keystore.KeyProperties
-import android.security.keystore.KeyProperties.BLOCK_MODE_CBC
-import android.security.keystore.KeyProperties.ENCRYPTION_PADDING_PKCS7
-import android.security.keystore.KeyProperties.KEY_ALGORITHM_AES
 import android.util.Base64
 import android.util.Log
 import android.view.Menu
@@ -38,21 +30,11 @@ import androidx.appcompat.app.AppCompatActivity
 import androidx.biometric.BiometricManager
 import androidx.biometric.BiometricPrompt
 import androidx.core.content.ContextCompat
-import java.io.IOException
-import java.security.InvalidAlgorithmParameterException
-import java.security.InvalidKeyException
-import java.security.KeyStore
-import java.security.KeyStoreException
-import java.security.NoSuchAlgorithmException
-import java.security.NoSuchProviderException
-import java.security.UnrecoverableKeyException
-import java.security.cert.CertificateException
-import javax.crypto.BadPaddingException
+import androidx.lifecycle.Lifecycle
+import androidx.lifecycle.ViewModelProvider
+import java.security.Signature
+import java.util.concurrent.Future
 import javax.crypto.Cipher
-import javax.crypto.IllegalBlockSizeException
-import javax.crypto.KeyGenerator
-import javax.crypto.NoSuchPaddingException
-import javax.crypto.SecretKey
 
 /**
  * Main entry point for the sample, showing a backpack and "Purchase" button.
@@ -60,122 +42,82 @@ import javax.crypto.SecretKey
 class MainActivity : AppCompatActivity(),
         FingerprintAuthenticationDialogFragment.Callback {
 
-    private lateinit var keyStore: KeyStore
-    private lateinit var keyGenerator: KeyGenerator
-    private lateinit var sharedPreferences: SharedPreferences
+    private lateinit var cryptoHolder: PurchaseCryptoHolder
+    private lateinit var authSettings: AuthSettings
+    private lateinit var attemptLimiter: AttemptLimiter
     private lateinit var biometricPrompt: BiometricPrompt
+    private var pendingCipher: Future<*>? = null
 
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
         setContentView(R.layout.activity_main)
         setSupportActionBar(findViewById(R.id.toolbar))
-        setupKeyStoreAndKeyGenerator()
 
-        val (defaultCipher: Cipher, cipherNotInvalidated: Cipher) = setupCiphers()
-        sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this)
+        // The KeyStore, keys and ciphers are only set up once a purchase needs them, and are kept
+        // across configuration changes.
+        cryptoHolder = ViewModelProvider(this, ViewModelProvider.NewInstanceFactory())
+                .get(PurchaseCryptoHolder::class.java)
+        authSettings = AuthSettings.getInstance(this)
+        attemptLimiter = AttemptLimiter.getInstance(this)
 
         biometricPrompt = createBiometricPrompt()
-        setUpPurchaseButtons(cipherNotInvalidated, defaultCipher)
+        setUpPurchaseButtons()
+        updateCartSummary()
     }
 
     /**
      * Enables or disables purchase buttons and sets the appropriate click listeners.
-     *
-     * @param cipherNotInvalidated cipher for the not invalidated purchase button
-     * @param defaultCipher the default cipher, used for the purchase button
      */
-    private fun setUpPurchaseButtons(cipherNotInvalidated: Cipher, defaultCipher: Cipher) {
+    private fun setUpPurchaseButtons() {
         val purchaseButton = findViewById<Button>(R.id.purchase_button)
         val purchaseButtonNotInvalidated =
                 findViewById<Button>(R.id.purchase_button_not_invalidated)
+        val purchaseButtonSigned = findViewById<Button>(R.id.purchase_button_signed)
+        val addToCartButton = findViewById<Button>(R.id.add_to_cart_button)
 
         if (BiometricManager.from(
                         application).canAuthenticate() == BiometricManager.BIOMETRIC_SUCCESS) {
-            createKey(DEFAULT_KEY_NAME)
-            createKey(KEY_NAME_NOT_INVALIDATED, false)
-
             purchaseButtonNotInvalidated.run {
                 isEnabled = true
-                setOnClickListener(PurchaseButtonClickListener(
-                        cipherNotInvalidated, KEY_NAME_NOT_INVALIDATED))
+                setOnClickListener(PurchaseButtonClickListener(KEY_NAME_NOT_INVALIDATED, false))
             }
             purchaseButton.run {
                 isEnabled = true
-                setOnClickListener(PurchaseButtonClickListener(defaultCipher, DEFAULT_KEY_NAME))
+                setOnClickListener(PurchaseButtonClickListener(DEFAULT_KEY_NAME, true))
+            }
+            purchaseButtonSigned.run {
+                isEnabled = true
+                setOnClickListener { onSignedPurchaseClicked() }
+            }
+            addToCartButton.run {
+                isEnabled = true
+                setOnClickListener { onAddToCartClicked() }
             }
+            // Have the signing key ready before the first signed purchase.
+            cryptoHolder.signer.prepareKey()
         } else {
             showToast(getString(R.string.setup_lock_screen))
             purchaseButton.isEnabled = false
             purchaseButtonNotInvalidated.isEnabled = false
+            purchaseButtonSigned.isEnabled = false
+            addToCartButton.isEnabled = false
         }
     }
 
     /**
-     * Sets up KeyStore and KeyGenerator
+     * Adds a line item to the cart. The whole cart is confirmed by the next purchase, with a single
+     * BiometricPrompt.
      */
-    private fun setupKeyStoreAndKeyGenerator() {
-        try {
-            keyStore = KeyStore.getInstance(ANDROID_KEY_STORE)
-        } catch (e: KeyStoreException) {
-            throw RuntimeException("Failed to get an instance of KeyStore", e)
-        }
-
-        try {
-            keyGenerator = KeyGenerator.getInstance(KEY_ALGORITHM_AES, ANDROID_KEY_STORE)
-        } catch (e: Exception) {
-            when (e) {
-                is NoSuchAlgorithmException,
-                is NoSuchProviderException ->
-                    throw RuntimeException("Failed to get an instance of KeyGenerator", e)
-                else -> throw e
-            }
-        }
+    private fun onAddToCartClicked() {
+        cryptoHolder.confirmationQueue.enqueue(Purchase(amountCents = ITEM_PRICE_CENTS))
+        updateCartSummary()
     }
 
-    /**
-     * Sets up default cipher and a non-invalidated cipher
-     */
-    private fun setupCiphers(): Pair<Cipher, Cipher> {
-        val defaultCipher: Cipher
-        val cipherNotInvalidated: Cipher
-        try {
-            val cipherString = "$KEY_ALGORITHM_AES/$BLOCK_MODE_CBC/$ENCRYPTION_PADDING_PKCS7"
-            defaultCipher = Cipher.getInstance(cipherString)
-            cipherNotInvalidated = Cipher.getInstance(cipherString)
-        } catch (e: Exception) {
-            when (e) {
-                is NoSuchAlgorithmException,
-                is NoSuchPaddingException ->
-                    throw RuntimeException("Failed to get an instance of Cipher", e)
-                else -> throw e
-            }
-        }
-        return Pair(defaultCipher, cipherNotInvalidated)
-    }
-
-    /**
-     * Initialize the [Cipher] instance with the created key in the [createKey] method.
-     *
-     * @param keyName the key name to init the cipher
-     * @return `true` if initialization succeeded, `false` if the lock screen has been disabled or
-     * reset after key generation, or if a fingerprint was enrolled after key generation.
-     */
-    private fun initCipher(cipher: Cipher, keyName: String): Boolean {
-        try {
-            keyStore.load(null)
-            cipher.init(Cipher.ENCRYPT_MODE, keyStore.getKey(keyName, null) as SecretKey)
-            return true
-        } catch (e: Exception) {
-            when (e) {
-                is KeyPermanentlyInvalidatedException -> return false
-                is KeyStoreException,
-                is CertificateException,
-                is UnrecoverableKeyException,
-                is IOException,
-                is NoSuchAlgorithmException,
-                is InvalidKeyException -> throw RuntimeException("Failed to init Cipher", e)
-                else -> throw e
-            }
+    private fun updateCartSummary() {
+        val size = cryptoHolder.confirmationQueue.size
+        findViewById<TextView>(R.id.cart_summary).run {
+            visibility = if (size > 0) View.VISIBLE else View.GONE
+            text = resources.getQuantityString(R.plurals.cart_summary, size, size)
         }
     }
 
@@ -190,8 +132,11 @@ class MainActivity : AppCompatActivity(),
             // If the user authenticated with fingerprint, verify using cryptography and then show
             // the confirmation message.
             crypto?.cipher?.let { tryEncrypt(it) }
+            crypto?.signature?.let { trySign(it) }
         } else {
             // Authentication happened with backup password. Just show the confirmation message.
+            cryptoHolder.confirmationQueue.clear()
+            updateCartSummary()
             showConfirmation()
         }
     }
@@ -208,28 +153,52 @@ class MainActivity : AppCompatActivity(),
     }
 
     /**
-     * Tries to encrypt some data with the generated key from [createKey]. This only works if the
-     * user just authenticated via fingerprint.
+     * Tries to encrypt the ids and amounts of the queued purchases with the generated key from
+     * [createKey]. This only works if the user just authenticated via fingerprint.
      */
     private fun tryEncrypt(cipher: Cipher) {
-        try {
-            showConfirmation(cipher.doFinal(SECRET_MESSAGE.toByteArray()))
-        } catch (e: Exception) {
-            when (e) {
-                is BadPaddingException,
-                is IllegalBlockSizeException -> {
+        val queue = cryptoHolder.confirmationQueue
+        if (queue.size == 0) return
+        // The queue is emptied right away, whether or not the batch goes on to be confirmed.
+        queue.confirmAll(cipher,
+                onConfirmed = { confirmation -> showConfirmation(confirmation.ciphertext) },
+                onError = { e ->
                     Toast.makeText(this, "Failed to encrypt the data with the generated key. "
                             + "Retry the purchase", Toast.LENGTH_LONG).show()
                     Log.e(TAG, "Failed to encrypt the data with the generated key. ${e.message}")
-                }
-                else -> throw e
-            }
-        }
+                })
+        updateCartSummary()
+    }
+
+    /**
+     * Signs the pending purchase with the fingerprint-bound signing key. This only works if the
+     * user just authenticated via fingerprint.
+     */
+    private fun trySign(signature: Signature) {
+        val purchase = cryptoHolder.purchaseToSign ?: return
+        cryptoHolder.purchaseToSign = null
+        cryptoHolder.signer.sign(signature, purchase,
+                onSigned = { signed ->
+                    showConfirmation(signed.signature)
+                    cryptoHolder.verifySignedPurchase(signed) { report ->
+                        if (BuildConfig.DEBUG) {
+                            Log.d(TAG, "Verified ${report.valid} signatures "
+                                    + "(${report.invalid} invalid), "
+                                    + "${report.signaturesPerSecond.toInt()} signatures/s")
+                        }
+                    }
+                },
+                onError = { e ->
+                    Toast.makeText(this, "Failed to sign the purchase. Retry the purchase",
+                            Toast.LENGTH_LONG).show()
+                    Log.e(TAG, "Failed to sign the purchase. ${e.message}")
+                })
     }
 
     /**
-     * Creates a symmetric key in the Android Key Store which can only be used after the user has
-     * authenticated with a fingerprint.
+     * Makes sure a symmetric key exists in the Android Key Store which can only be used after the
+     * user has authenticated with a fingerprint. An existing key is only replaced if it has been
+     * permanently invalidated or was created with different settings.
      *
      * @param keyName the name of the key to be created
      * @param invalidatedByBiometricEnrollment if `false` is passed, the created key will not be
@@ -237,32 +206,12 @@ class MainActivity : AppCompatActivity(),
      * be invalidated if a new fingerprint is enrolled.
      */
     override fun createKey(keyName: String, invalidatedByBiometricEnrollment: Boolean) {
-        // The enrolling flow for fingerprint. This is where you ask the user to set up fingerprint
-        // for your flow. Use of keys is necessary if you need to know if the set of enrolled
-        // fingerprints has changed.
-        try {
-            keyStore.load(null)
-
-            val keyProperties = KeyProperties.PURPOSE_ENCRYPT or KeyProperties.PURPOSE_DECRYPT
-            val builder = KeyGenParameterSpec.Builder(keyName, keyProperties)
-                    .setBlockModes(BLOCK_MODE_CBC)
-                    .setUserAuthenticationRequired(true)
-                    .setEncryptionPaddings(ENCRYPTION_PADDING_PKCS7)
-                    .setInvalidatedByBiometricEnrollment(invalidatedByBiometricEnrollment)
-
-            keyGenerator.run {
-                init(builder.build())
-                generateKey()
-            }
-        } catch (e: Exception) {
-            when (e) {
-                is NoSuchAlgorithmException,
-                is InvalidAlgorithmParameterException,
-                is CertificateException,
-                is IOException -> throw RuntimeException(e)
-                else -> throw e
-            }
-        }
+        cryptoHolder.createKey(keyName, KeyPolicy(invalidatedByBiometricEnrollment))
+    }
+
+    override fun onDestroy() {
+        pendingCipher?.cancel(false)
+        super.onDestroy()
     }
 
     override fun onCreateOptionsMenu(menu: Menu): Boolean {
@@ -285,7 +234,11 @@ class MainActivity : AppCompatActivity(),
         val callback = object : BiometricPrompt.AuthenticationCallback() {
             override fun onAuthenticationError(errorCode: Int, errString: CharSequence) {
                 super.onAuthenticationError(errorCode, errString)
-                Log.d(TAG, "$errorCode :: $errString")
+                AuthTrace.event(AuthTrace.AUTH_ERROR, errorCode.toLong())
+                // Whatever ended the prompt, nothing was confirmed with a fingerprint. The cart
+                // stays on screen, so the user can try again, but the purchase waiting for a
+                // signature would otherwise be signed by the next prompt.
+                cryptoHolder.purchaseToSign = null
                 if (errorCode == BiometricPrompt.ERROR_NEGATIVE_BUTTON) {
                     loginWithPassword() // Because negative button says use application password
                 }
@@ -293,12 +246,17 @@ class MainActivity : AppCompatActivity(),
 
             override fun onAuthenticationFailed() {
                 super.onAuthenticationFailed()
-                Log.d(TAG, "Authentication failed for an unknown reason")
+                AuthTrace.event(AuthTrace.AUTH_FAILED)
+                if (attemptLimiter.recordFailure() > 0) {
+                    biometricPrompt.cancelAuthentication()
+                    showToast(getString(R.string.too_many_attempts))
+                }
             }
 
             override fun onAuthenticationSucceeded(result: BiometricPrompt.AuthenticationResult) {
                 super.onAuthenticationSucceeded(result)
-                Log.d(TAG, "Authentication was successful")
+                AuthTrace.event(AuthTrace.AUTH_SUCCEEDED)
+                attemptLimiter.recordSuccess()
                 onPurchased(true, result.cryptoObject)
             }
         }
@@ -328,30 +286,101 @@ class MainActivity : AppCompatActivity(),
         fragment.show(fragmentManager, DIALOG_FRAGMENT_TAG)
     }
 
+    private fun isLockedOut(): Boolean {
+        if (attemptLimiter.remainingLockoutMillis() == 0L) return false
+        showToast(getString(R.string.too_many_attempts))
+        return true
+    }
+
+    private fun onSignedPurchaseClicked() {
+        findViewById<View>(R.id.confirmation_message).visibility = View.GONE
+        findViewById<View>(R.id.encrypted_message).visibility = View.GONE
+
+        if (!authSettings.useFingerprint.value) {
+            // Signing needs a fingerprint, so only an unsigned purchase is possible.
+            loginWithPassword()
+            return
+        }
+
+        AuthTrace.event(AuthTrace.PROMPT_REQUESTED)
+        cryptoHolder.signer.prepareSignature(
+                onPrepared = { signature ->
+                    if (!lifecycle.currentState.isAtLeast(Lifecycle.State.RESUMED)
+                            || isLockedOut()) {
+                        return@prepareSignature
+                    }
+                    cryptoHolder.purchaseToSign = Purchase(amountCents = ITEM_PRICE_CENTS)
+                    biometricPrompt.authenticate(createPromptInfo(),
+                            BiometricPrompt.CryptoObject(signature))
+                    AuthTrace.event(AuthTrace.PROMPT_SHOWN)
+                },
+                onError = { e ->
+                    Log.e(TAG, "Failed to prepare the signature", e)
+                    if (!lifecycle.currentState.isAtLeast(Lifecycle.State.RESUMED)) {
+                        return@prepareSignature
+                    }
+                    Toast.makeText(this, "Failed to prepare the signature. Retry the purchase",
+                            Toast.LENGTH_LONG).show()
+                })
+    }
+
     private inner class PurchaseButtonClickListener internal constructor(
-            internal var cipher: Cipher,
-            internal var keyName: String
+            internal var keyName: String,
+            internal var invalidatedByBiometricEnrollment: Boolean
     ) : View.OnClickListener {
 
         override fun onClick(view: View) {
             findViewById<View>(R.id.confirmation_message).visibility = View.GONE
             findViewById<View>(R.id.encrypted_message).visibility = View.GONE
 
-            val promptInfo = createPromptInfo()
-
-            if (initCipher(cipher, keyName)) {
-                biometricPrompt.authenticate(promptInfo, BiometricPrompt.CryptoObject(cipher))
-            } else {
-                loginWithPassword()
-            }
+            AuthTrace.event(AuthTrace.PROMPT_REQUESTED)
+            val policy = KeyPolicy(invalidatedByBiometricEnrollment)
+            val purchase = Purchase(amountCents = ITEM_PRICE_CENTS)
+
+            // The keystore work happens in the background; the UI thread only shows the prompt.
+            // An empty cart buys this one item. It is only queued once the prompt that confirms
+            // it is shown, so a tap that is superseded or ends up elsewhere leaves nothing behind.
+            pendingCipher?.cancel(false)
+            pendingCipher = cryptoHolder.prepareCipher(keyName, policy,
+                    onPrepared = { cipher ->
+                        pendingCipher = null
+                        if (!lifecycle.currentState.isAtLeast(Lifecycle.State.RESUMED)) {
+                            return@prepareCipher
+                        }
+                        if (cipher == null) {
+                            // The key was permanently invalidated, e.g. by a new fingerprint
+                            // enrollment.
+                            loginWithPassword()
+                        } else if (!authSettings.useFingerprint.value) {
+                            // The user turned biometrics off in the settings.
+                            loginWithPassword()
+                        } else if (!isLockedOut()) {
+                            val queue = cryptoHolder.confirmationQueue
+                            if (queue.size == 0) queue.enqueue(purchase)
+                            updateCartSummary()
+                            biometricPrompt.authenticate(createPromptInfo(),
+                                    BiometricPrompt.CryptoObject(cipher))
+                            AuthTrace.event(AuthTrace.PROMPT_SHOWN)
+                        }
+                    },
+                    onError = { e ->
+                        pendingCipher = null
+                        Log.e(TAG, "Failed to prepare the key for the purchase", e)
+                        if (!lifecycle.currentState.isAtLeast(Lifecycle.State.RESUMED)) {
+                            return@prepareCipher
+                        }
+                        // The keystore cannot confirm this purchase, so offer the app password.
+                        Toast.makeText(this@MainActivity, "Failed to prepare the key. "
+                                + "Use the app password instead", Toast.LENGTH_LONG).show()
+                        loginWithPassword()
+                    })
         }
     }
 
     companion object {
-        private const val ANDROID_KEY_STORE = "AndroidKeyStore"
         private const val DIALOG_FRAGMENT_TAG = "myFragment"
+        private const val ITEM_PRICE_CENTS = 6268L
         private const val KEY_NAME_NOT_INVALIDATED = "key_not_invalidated"
-        private const val SECRET_MESSAGE = "Very secret message"
         private const val TAG = "MainActivity"
     }
 }
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.biometricauth
+
+import android.content.Context
+import android.content.SharedPreferences
+import android.os.Build
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
+import android.util.Base64
+import android.util.Log
+import java.security.MessageDigest
+import java.security.SecureRandom
+import java.util.Arrays
+import java.util.concurrent.Executors
+import javax.crypto.SecretKeyFactory
+import javax.crypto.spec.PBEKeySpec
+
+/**
+ * Verifies the backup password on the device, for when the server can not be reached.
+ *
+ * The password is set explicitly with [enroll], and can only be replaced after a [reset]. Only a
+ * salted PBKDF2 hash of the password is kept, in device protected storage so that it is
+ * available before the user unlocks the device for the first time. The number of iterations is
+ * calibrated on the device when the password is enrolled, so that one verification takes about
+ * [targetMillis]; a slower hash costs an attacker more per guess but keeps the user waiting.
+ *
+ * All hashing happens on a background thread and results are delivered on the UI thread.
+ */
+class OfflinePasswordVerifier private constructor(
+        context: Context,
+        private val targetMillis: Long
+) {
+
+    private val storageContext = context.applicationContext.createDeviceProtectedStorageContext()
+    private val executor = Executors.newSingleThreadExecutor()
+    private val mainHandler = Handler(Looper.getMainLooper())
+    private val random = SecureRandom()
+
+    // Only touched on the executor thread.
+    private val preferences: SharedPreferences by lazy {
+        storageContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE)
+    }
+
+    /**
+     * Passes whether a password has been set with [enroll] to [onResult].
+     */
+    fun isEnrolled(onResult: (Boolean) -> Unit) {
+        executor.execute {
+            val enrolled = preferences.contains(KEY_HASH)
+            mainHandler.post { onResult(enrolled) }
+        }
+    }
+
+    /**
+     * Checks [password] against the stored hash and passes the result to [onResult]. No password
+     * is accepted until one has been set with [enroll]. [password] is cleared once it has been
+     * hashed.
+     */
+    fun verify(password: CharArray, onResult: (Boolean) -> Unit) {
+        executor.execute {
+            val result = try {
+                preferences.contains(KEY_HASH) && check(password)
+            } finally {
+                Arrays.fill(password, '\u0000')
+            }
+            mainHandler.post { onResult(result) }
+        }
+    }
+
+    /**
+     * Sets [password] as the password, unless one is already set, and passes whether it was set to
+     * [onResult]. [password] is cleared once it has been hashed.
+     */
+    fun enroll(password: CharArray, onResult: (Boolean) -> Unit) {
+        executor.execute {
+            val result = try {
+                !preferences.contains(KEY_HASH) && store(password)
+            } finally {
+                Arrays.fill(password, '\u0000')
+            }
+            mainHandler.post { onResult(result) }
+        }
+    }
+
+    /**
+     * Forgets the password, so that a new one can be set with [enroll], then calls [onReset]. Only
+     * call this once the user has proven who they are in another way, such as with the screen
+     * lock.
+     */
+    fun reset(onReset: () -> Unit) {
+        executor.execute {
+            preferences.edit().clear().apply()
+            Log.d(TAG, "Reset offline password")
+            mainHandler.post(onReset)
+        }
+    }
+
+    private fun check(password: CharArray): Boolean {
+        val algorithm = preferences.getString(KEY_ALGORITHM, null) ?: return false
+        val iterations = preferences.getInt(KEY_ITERATIONS, 0)
+        val salt = Base64.decode(preferences.getString(KEY_SALT, ""), Base64.NO_WRAP)
+        val expected = Base64.decode(preferences.getString(KEY_HASH, ""), Base64.NO_WRAP)
+
+        val start = SystemClock.elapsedRealtime()
+        val actual = hash(algorithm, password, salt, iterations)
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Verified with $iterations iterations in "
+                    + "${SystemClock.elapsedRealtime() - start} ms")
+        }
+        // Compare in constant time, so the time taken leaks nothing about the stored hash.
+        return MessageDigest.isEqual(expected, actual)
+    }
+
+    private fun store(password: CharArray): Boolean {
+        val algorithm = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            PBKDF2_SHA256
+        } else {
+            PBKDF2_SHA1 // PBKDF2WithHmacSHA256 is only available from API 26.
+        }
+        val iterations = calibrate(algorithm, targetMillis)
+        val salt = ByteArray(SALT_SIZE).also { random.nextBytes(it) }
+        preferences.edit()
+                .putString(KEY_ALGORITHM, algorithm)
+                .putInt(KEY_ITERATIONS, iterations)
+                .putString(KEY_SALT, Base64.encodeToString(salt, Base64.NO_WRAP))
+                .putString(KEY_HASH, Base64.encodeToString(
+                        hash(algorithm, password, salt, iterations), Base64.NO_WRAP))
+                .apply()
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Enrolled offline password with $iterations iterations of $algorithm")
+        }
+        return true
+    }
+
+    companion object {
+        private const val TAG = "OfflinePasswordVerifier"
+        private const val PREFERENCES_NAME = "offline_password"
+        private const val KEY_ALGORITHM = "algorithm"
+        private const val KEY_ITERATIONS = "iterations"
+        private const val KEY_SALT = "salt"
+        private const val KEY_HASH = "hash"
+        internal const val PBKDF2_SHA256 = "PBKDF2WithHmacSHA256"
+        private const val PBKDF2_SHA1 = "PBKDF2WithHmacSHA1"
+        private const val SALT_SIZE = 16
+        private const val HASH_SIZE_BITS = 256
+        private const val CALIBRATION_ITERATIONS = 10_000
+        private const val CALIBRATION_RUNS = 3
+        internal const val MIN_ITERATIONS = 10_000
+        internal const val MAX_ITERATIONS = 5_000_000
+        internal const val DEFAULT_TARGET_MILLIS = 250L
+
+        @Volatile
+        private var instance: OfflinePasswordVerifier? = null
+
+        fun getInstance(context: Context): OfflinePasswordVerifier =
+                instance ?: synchronized(this) {
+                    instance ?: OfflinePasswordVerifier(context, DEFAULT_TARGET_MILLIS)
+                            .also { instance = it }
+                }
+
+        /**
+         * Times hashes with [CALIBRATION_ITERATIONS] and scales the iteration count so that a hash
+         * takes about [targetMillis] on this device, between [MIN_ITERATIONS] and
+         * [MAX_ITERATIONS]. The fastest of [CALIBRATION_RUNS] probes counts, as the first one runs
+         * cold and any of them can be preempted. [nanoClock] is only replaced in tests.
+         */
+        internal fun calibrate(
+                algorithm: String,
+                targetMillis: Long,
+                nanoClock: () -> Long = SystemClock::elapsedRealtimeNanos
+        ): Int {
+            val probe = "calibration".toCharArray()
+            val salt = ByteArray(SALT_SIZE)
+            var elapsedNanos = Long.MAX_VALUE
+            repeat(CALIBRATION_RUNS) {
+                val start = nanoClock()
+                hash(algorithm, probe, salt, CALIBRATION_ITERATIONS)
+                elapsedNanos = Math.min(elapsedNanos, Math.max(1L, nanoClock() - start))
+            }
+            val iterations = CALIBRATION_ITERATIONS * (targetMillis * 1_000_000L) / elapsedNanos
+            return Math.max(MIN_ITERATIONS.toLong(), Math.min(iterations, MAX_ITERATIONS.toLong()))
+                    .toInt()
+        }
+
+        internal fun hash(
+                algorithm: String,
+                password: CharArray,
+                salt: ByteArray,
+                iterations: Int
+        ): ByteArray {
+            val spec = PBEKeySpec(password, salt, iterations, HASH_SIZE_BITS)
+            try {
+                return SecretKeyFactory.getInstance(algorithm).generateSecret(spec).encoded
+            } finally {
+                spec.clearPassword()
+            }
+        }
+    }
+}
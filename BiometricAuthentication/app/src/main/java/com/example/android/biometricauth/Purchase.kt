@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.biometricauth
+
+import java.nio.ByteBuffer
+import java.util.UUID
+
+/**
+ * A purchase waiting for the user to confirm it.
+ */
+data class Purchase(
+        val id: String = UUID.randomUUID().toString(),
+        val amountCents: Long
+) {
+
+    /**
+     * The purchase id and amount, as encrypted when the purchase is confirmed and as signed when it
+     * is signed.
+     */
+    fun encode(): ByteArray {
+        val idBytes = id.toByteArray(Charsets.UTF_8)
+        return ByteBuffer.allocate(Int.SIZE_BYTES + idBytes.size + Long.SIZE_BYTES)
+                .putInt(idBytes.size)
+                .put(idBytes)
+                .putLong(amountCents)
+                .array()
+    }
+}
+
+/**
+ * The result of confirming a batch of purchases in a single GCM operation: [ciphertext] holds the
+ * encoded records of all [purchases], in order, followed by one authentication tag covering all of
+ * them. [iv] was chosen by the keystore when the Cipher was initialized.
+ */
+class PurchaseConfirmation(
+        val purchases: List<Purchase>,
+        val iv: ByteArray,
+        val ciphertext: ByteArray
+)
+
+/**
+ * A purchase signed with the fingerprint-bound purchase signing key. A backend that knows the
+ * public key can check [signature] over [signedData] with [PurchaseSignatureVerifier].
+ *
+ * @param nonce random bytes, normally chosen by the backend, so that a signature can not be
+ * replayed
+ */
+class SignedPurchase(
+        val purchase: Purchase,
+        val nonce: ByteArray,
+        val signature: ByteArray
+) {
+
+    fun signedData(): ByteArray = nonce + purchase.encode()
+}
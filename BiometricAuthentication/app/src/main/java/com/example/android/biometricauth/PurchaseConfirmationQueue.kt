@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.biometricauth
+
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
+import android.util.Log
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.security.GeneralSecurityException
+import java.util.concurrent.Executor
+import javax.crypto.Cipher
+
+/**
+ * Collects the line items of a checkout, then confirms all of them with the single Cipher
+ * operation a BiometricPrompt authentication unlocks.
+ *
+ * The Cipher work runs on [executor], and the whole batch is delivered to the UI thread at once.
+ * The queue itself is only meant to be used from the UI thread.
+ */
+class PurchaseConfirmationQueue(private val executor: Executor) {
+
+    private val mainHandler = Handler(Looper.getMainLooper())
+    private val pending = ArrayList<Purchase>()
+
+    /**
+     * Throughput of the most recently confirmed batch, or null if none was confirmed yet.
+     */
+    @Volatile
+    var lastMetrics: Metrics? = null
+        private set
+
+    val size: Int
+        get() = pending.size
+
+    fun enqueue(purchase: Purchase) {
+        pending.add(purchase)
+    }
+
+    fun clear() {
+        pending.clear()
+    }
+
+    /**
+     * Encrypts the id and amount of every queued purchase with [cipher], an AES/GCM Cipher that was
+     * just initialized for encryption and authenticated. The number of purchases is bound as
+     * associated data, so no purchase can be added, removed or changed without failing the tag
+     * check. The queue is emptied right away, and exactly one of [onConfirmed] or [onError] is
+     * called on the UI thread.
+     */
+    fun confirmAll(
+            cipher: Cipher,
+            onConfirmed: (PurchaseConfirmation) -> Unit,
+            onError: (GeneralSecurityException) -> Unit
+    ) {
+        val purchases = ArrayList(pending)
+        pending.clear()
+        executor.execute {
+            try {
+                val confirmation = AuthTrace.section(AuthTrace.ENCRYPT) {
+                    encrypt(cipher, purchases)
+                }
+                mainHandler.post { onConfirmed(confirmation) }
+            } catch (e: GeneralSecurityException) {
+                mainHandler.post { onError(e) }
+            }
+        }
+    }
+
+    private fun encrypt(cipher: Cipher, purchases: List<Purchase>): PurchaseConfirmation {
+        val start = SystemClock.elapsedRealtimeNanos()
+        val ciphertext = seal(cipher, purchases)
+        val metrics = Metrics(
+                purchases = purchases.size,
+                bytes = ciphertext.size,
+                elapsedNanos = SystemClock.elapsedRealtimeNanos() - start
+        )
+        lastMetrics = metrics
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Confirmed ${metrics.purchases} purchases, ${metrics.bytes} bytes in "
+                    + "${metrics.elapsedNanos / 1000} us (${metrics.purchasesPerSecond.toInt()}/s)")
+        }
+        return PurchaseConfirmation(purchases, cipher.iv, ciphertext)
+    }
+
+    /**
+     * How long confirming one batch took.
+     */
+    data class Metrics(val purchases: Int, val bytes: Int, val elapsedNanos: Long) {
+
+        val purchasesPerSecond: Double
+            get() = if (elapsedNanos == 0L) 0.0 else purchases * 1e9 / elapsedNanos
+
+        val bytesPerSecond: Double
+            get() = if (elapsedNanos == 0L) 0.0 else bytes * 1e9 / elapsedNanos
+    }
+
+    companion object {
+        private const val TAG = "PurchaseConfirmation"
+
+        /**
+         * Encrypts the encoded [purchases] with [cipher], binding their number as associated data,
+         * and returns the ciphertext followed by the tag.
+         */
+        internal fun seal(cipher: Cipher, purchases: List<Purchase>): ByteArray {
+            // GCM wants all of the associated data before any of the plaintext.
+            cipher.updateAAD(ByteBuffer.allocate(Int.SIZE_BYTES).putInt(purchases.size).array())
+            val records = purchases.map { it.encode() }
+            val ciphertext = ByteArrayOutputStream(cipher.getOutputSize(records.sumBy { it.size }))
+            for (record in records) {
+                cipher.update(record)?.let { ciphertext.write(it) }
+            }
+            ciphertext.write(cipher.doFinal())
+            return ciphertext.toByteArray()
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.biometricauth
+
+import android.os.Handler
+import android.os.Looper
+import android.security.keystore.KeyPermanentlyInvalidatedException
+import android.security.keystore.KeyProperties.BLOCK_MODE_GCM
+import android.security.keystore.KeyProperties.ENCRYPTION_PADDING_NONE
+import android.security.keystore.KeyProperties.KEY_ALGORITHM_AES
+import androidx.lifecycle.ViewModel
+import java.security.InvalidKeyException
+import java.security.NoSuchAlgorithmException
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.FutureTask
+import javax.crypto.Cipher
+import javax.crypto.NoSuchPaddingException
+
+/**
+ * Holds the Ciphers used for purchases and prepares them on a background thread, so that the UI
+ * thread never waits for the keystore. Ciphers are created on first use, and since this is a
+ * ViewModel, they survive configuration changes such as rotations.
+ */
+class PurchaseCryptoHolder : ViewModel() {
+
+    private val keys = KeyLifecycleManager.instance
+    private val executor = Executors.newSingleThreadExecutor()
+    private val mainHandler = Handler(Looper.getMainLooper())
+
+    // Only touched on the executor thread. Each Cipher is initialized again for every purchase,
+    // which makes the keystore pick a fresh GCM IV.
+    private val ciphers = HashMap<String, Cipher>()
+
+    /**
+     * The cart: the purchases the next BiometricPrompt confirms. They are kept here so that they
+     * survive the activity being recreated, including while the BiometricPrompt is showing.
+     */
+    val confirmationQueue = PurchaseConfirmationQueue(executor)
+
+    val signer = PurchaseSigner(executor)
+
+    /**
+     * The purchase waiting for the BiometricPrompt that unlocks its signature.
+     */
+    var purchaseToSign: Purchase? = null
+
+    // Verification has its own thread, so that it never delays preparing the next prompt.
+    private val verificationExecutor = Executors.newSingleThreadExecutor()
+
+    /**
+     * Verifies [signedPurchase] in the background, the way a backend would, passing the report to
+     * [onVerified] on the UI thread.
+     */
+    fun verifySignedPurchase(
+            signedPurchase: SignedPurchase,
+            onVerified: (PurchaseSignatureVerifier.Report) -> Unit
+    ) {
+        verificationExecutor.execute {
+            val verifier = PurchaseSignatureVerifier(signer.publicKey, verificationExecutor)
+            val report = verifier.verifyAll(listOf(signedPurchase))
+            mainHandler.post { onVerified(report) }
+        }
+    }
+
+    /**
+     * Initializes the Cipher for the key named [keyName] in the background, generating the key
+     * first if needed, then passes it to [onPrepared] on the UI thread. The Cipher is null if the
+     * key was permanently invalidated, in which case it is regenerated the next time it is needed.
+     * Any other failure is passed to [onError] on the UI thread.
+     *
+     * Nothing is delivered if the returned Future is cancelled first.
+     */
+    fun prepareCipher(
+            keyName: String,
+            policy: KeyPolicy,
+            onPrepared: (Cipher?) -> Unit,
+            onError: (Exception) -> Unit
+    ): Future<*> {
+        val task = object : FutureTask<Cipher?>({
+            AuthTrace.section(AuthTrace.CIPHER_INIT) { initCipher(keyName, policy) }
+        }) {
+            override fun done() {
+                if (isCancelled) return
+                val cipher = try {
+                    get()
+                } catch (e: ExecutionException) {
+                    val cause = e.cause as? Exception ?: e
+                    mainHandler.post { if (!isCancelled) onError(cause) }
+                    return
+                }
+                mainHandler.post { if (!isCancelled) onPrepared(cipher) }
+            }
+        }
+        executor.execute(task)
+        return task
+    }
+
+    /**
+     * Makes sure the key named [keyName] exists and matches [policy], in the background.
+     */
+    fun createKey(keyName: String, policy: KeyPolicy) {
+        executor.execute { keys.getOrCreateKey(keyName, policy) }
+    }
+
+    override fun onCleared() {
+        executor.shutdownNow()
+        verificationExecutor.shutdownNow()
+    }
+
+    private fun initCipher(keyName: String, policy: KeyPolicy): Cipher? {
+        val cipher = getCipher(keyName)
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, keys.getOrCreateKey(keyName, policy))
+            return cipher
+        } catch (e: Exception) {
+            when (e) {
+                is KeyPermanentlyInvalidatedException -> {
+                    keys.onKeyPermanentlyInvalidated(keyName)
+                    return null
+                }
+                is InvalidKeyException -> throw RuntimeException("Failed to init Cipher", e)
+                else -> throw e
+            }
+        }
+    }
+
+    private fun getCipher(keyName: String): Cipher = ciphers.getOrPut(keyName) {
+        try {
+            Cipher.getInstance("$KEY_ALGORITHM_AES/$BLOCK_MODE_GCM/$ENCRYPTION_PADDING_NONE")
+        } catch (e: Exception) {
+            when (e) {
+                is NoSuchAlgorithmException,
+                is NoSuchPaddingException ->
+                    throw RuntimeException("Failed to get an instance of Cipher", e)
+                else -> throw e
+            }
+        }
+    }
+}
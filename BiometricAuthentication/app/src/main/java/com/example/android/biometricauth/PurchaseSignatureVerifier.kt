@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.biometricauth
+
+import java.security.PublicKey
+import java.security.Signature
+import java.security.SignatureException
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executor
+import java.util.concurrent.FutureTask
+
+/**
+ * Checks [SignedPurchase]s, one at a time or in bulk, the way a backend would. It only uses
+ * `java.security`, so it runs on a plain JVM as well as on the device.
+ *
+ * Batches are split across [workers], a long-lived executor owned by the caller, into at most
+ * [parallelism] chunks.
+ */
+class PurchaseSignatureVerifier(
+        private val publicKey: PublicKey,
+        private val workers: Executor,
+        private val parallelism: Int = Runtime.getRuntime().availableProcessors()
+) {
+
+    fun verify(signedPurchase: SignedPurchase): Boolean =
+            verify(signedPurchase, Signature.getInstance(SIGNATURE_ALGORITHM))
+
+    /**
+     * Verifies all [signedPurchases], each chunk reusing a single Signature.
+     */
+    fun verifyAll(signedPurchases: List<SignedPurchase>): Report {
+        val start = System.nanoTime()
+        val chunkSize = Math.max(1, (signedPurchases.size + parallelism - 1) / parallelism)
+        val tasks = signedPurchases.chunked(chunkSize).map { chunk ->
+            FutureTask(Callable {
+                val signature = Signature.getInstance(SIGNATURE_ALGORITHM)
+                chunk.count { verify(it, signature) }
+            })
+        }
+        tasks.forEach { workers.execute(it) }
+        // Chunks that no worker has started yet run on this thread instead, so the batch also
+        // completes when it is verified from one of the workers, or while they are all busy.
+        val valid = tasks.sumBy { task ->
+            task.run()
+            try {
+                task.get()
+            } catch (e: ExecutionException) {
+                throw e.cause ?: e
+            }
+        }
+        return Report(valid, signedPurchases.size - valid, System.nanoTime() - start)
+    }
+
+    private fun verify(signedPurchase: SignedPurchase, signature: Signature): Boolean {
+        signature.initVerify(publicKey)
+        signature.update(signedPurchase.signedData())
+        return try {
+            signature.verify(signedPurchase.signature)
+        } catch (e: SignatureException) {
+            false // Not a well-formed ECDSA signature.
+        }
+    }
+
+    /**
+     * Outcome of one [verifyAll] call.
+     */
+    data class Report(val valid: Int, val invalid: Int, val elapsedNanos: Long) {
+
+        val signaturesPerSecond: Double
+            get() = if (elapsedNanos == 0L) 0.0 else (valid + invalid) * 1e9 / elapsedNanos
+    }
+
+    companion object {
+        const val SIGNATURE_ALGORITHM = "SHA256withECDSA"
+    }
+}
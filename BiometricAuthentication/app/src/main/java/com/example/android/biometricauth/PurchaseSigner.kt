@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.biometricauth
+
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
+import android.security.keystore.KeyPermanentlyInvalidatedException
+import android.util.Log
+import java.security.InvalidKeyException
+import java.security.PublicKey
+import java.security.SecureRandom
+import java.security.Signature
+import java.security.SignatureException
+import java.util.concurrent.Executor
+
+/**
+ * Signs purchases with an EC key that can only be used once the user authenticated with a
+ * fingerprint, producing a [SignedPurchase] a backend can verify.
+ *
+ * The keystore work runs on [executor]. The key pair can be generated ahead of time with
+ * [prepareKey], but a Signature is only initialized right before the BiometricPrompt that unlocks
+ * it: the key allows a single signature per authentication, and the keystore may prune an
+ * operation that was left idle, after which it can no longer sign.
+ */
+class PurchaseSigner(private val executor: Executor) {
+
+    private val keys = KeyLifecycleManager.instance
+    private val mainHandler = Handler(Looper.getMainLooper())
+    private val random = SecureRandom()
+
+    private var signatureCount = 0
+    private var signingNanos = 0L
+
+    /**
+     * The public half of the signing key. This reads the keystore, so call it in the background.
+     */
+    val publicKey: PublicKey
+        get() = keys.getOrCreateSigningKeyPair(SIGNING_KEY_NAME).public
+
+    /**
+     * Generates the signing key pair in the background if it does not exist yet, so that the
+     * first signed purchase does not wait for it.
+     */
+    fun prepareKey() {
+        executor.execute { keys.getOrCreateSigningKeyPair(SIGNING_KEY_NAME) }
+    }
+
+    /**
+     * Initializes a Signature in the background and passes it to [onPrepared] on the UI thread.
+     * If the keystore cannot provide one, the failure is passed to [onError] on the UI thread.
+     */
+    fun prepareSignature(onPrepared: (Signature) -> Unit, onError: (Exception) -> Unit) {
+        executor.execute {
+            val signature = try {
+                newSignature()
+            } catch (e: Exception) {
+                mainHandler.post { onError(e) }
+                return@execute
+            }
+            mainHandler.post { onPrepared(signature) }
+        }
+    }
+
+    /**
+     * Signs [purchase] and a fresh nonce with [signature], which must have been authenticated
+     * through a BiometricPrompt, then passes the result to [onSigned] on the UI thread.
+     */
+    fun sign(
+            signature: Signature,
+            purchase: Purchase,
+            onSigned: (SignedPurchase) -> Unit,
+            onError: (SignatureException) -> Unit
+    ) {
+        val nonce = ByteArray(NONCE_SIZE).also { random.nextBytes(it) }
+        executor.execute {
+            val start = SystemClock.elapsedRealtimeNanos()
+            try {
+                val signedPurchase = AuthTrace.section(AuthTrace.SIGN) {
+                    signature.update(nonce)
+                    signature.update(purchase.encode())
+                    SignedPurchase(purchase, nonce, signature.sign())
+                }
+                logSigningRate(SystemClock.elapsedRealtimeNanos() - start)
+                mainHandler.post { onSigned(signedPurchase) }
+            } catch (e: SignatureException) {
+                mainHandler.post { onError(e) }
+            }
+        }
+    }
+
+    private fun newSignature(): Signature = AuthTrace.section(AuthTrace.SIGNATURE_INIT) {
+        val signature = Signature.getInstance(PurchaseSignatureVerifier.SIGNATURE_ALGORITHM)
+        try {
+            signature.initSign(keys.getOrCreateSigningKeyPair(SIGNING_KEY_NAME).private)
+        } catch (e: KeyPermanentlyInvalidatedException) {
+            keys.onKeyPermanentlyInvalidated(SIGNING_KEY_NAME)
+            signature.initSign(keys.getOrCreateSigningKeyPair(SIGNING_KEY_NAME).private)
+        } catch (e: InvalidKeyException) {
+            throw RuntimeException("Failed to init Signature", e)
+        }
+        signature
+    }
+
+    private fun logSigningRate(elapsedNanos: Long) {
+        signatureCount++
+        signingNanos += elapsedNanos
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Signed in ${elapsedNanos / 1000} us, "
+                    + "${(signatureCount * 1e9 / signingNanos).toInt()} signatures/s on average")
+        }
+    }
+
+    companion object {
+        private const val SIGNING_KEY_NAME = "purchase_signing_key"
+        private const val NONCE_SIZE = 16
+        private const val TAG = "PurchaseSigner"
+    }
+}
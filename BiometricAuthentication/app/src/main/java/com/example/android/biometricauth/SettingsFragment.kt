@@ -17,13 +17,79 @@
 package com.example.android.biometricauth
 
 import android.os.Bundle
+import android.preference.CheckBoxPreference
 import android.preference.PreferenceFragment
+import android.widget.Toast
+import androidx.biometric.BiometricPrompt
+import androidx.core.content.ContextCompat
+import androidx.fragment.app.FragmentActivity
 
 class SettingsFragment : PreferenceFragment() {
 
+    private lateinit var useFingerprintPreference: CheckBoxPreference
+    private lateinit var resetPasswordPrompt: BiometricPrompt
+    private val useFingerprintObserver: (Boolean) -> Unit = { checked ->
+        useFingerprintPreference.isChecked = checked
+    }
+
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
         addPreferencesFromResource(R.xml.preferences)
+
+        // The preference is not persisted by itself; it mirrors the in-memory AuthSettings, which
+        // write to disk in the background.
+        val useFingerprint = AuthSettings.getInstance(activity).useFingerprint
+        useFingerprintPreference = findPreference(
+                getString(R.string.use_fingerprint_to_authenticate_key)) as CheckBoxPreference
+        useFingerprintPreference.isChecked = useFingerprint.value
+        useFingerprintPreference.setOnPreferenceChangeListener { _, newValue ->
+            useFingerprint.set(newValue as Boolean)
+            true
+        }
+        useFingerprint.addObserver(useFingerprintObserver)
+
+        // Anyone holding the device could pick a new password after a reset, so the reset needs
+        // the screen lock first.
+        resetPasswordPrompt = createResetPasswordPrompt()
+        findPreference(getString(R.string.reset_password_key)).setOnPreferenceClickListener {
+            resetPasswordPrompt.authenticate(BiometricPrompt.PromptInfo.Builder()
+                    .setTitle(getString(R.string.reset_password_title))
+                    .setSubtitle(getString(R.string.reset_password_prompt_subtitle))
+                    .setDeviceCredentialAllowed(true)
+                    .build())
+            true
+        }
+    }
+
+    private fun createResetPasswordPrompt(): BiometricPrompt {
+        val fragmentActivity = activity as FragmentActivity
+        val callback = object : BiometricPrompt.AuthenticationCallback() {
+            override fun onAuthenticationSucceeded(result: BiometricPrompt.AuthenticationResult) {
+                super.onAuthenticationSucceeded(result)
+                val context = fragmentActivity.applicationContext
+                // The user just proved who they are, so a lockout from guessing the forgotten
+                // password no longer applies.
+                AttemptLimiter.getInstance(context).recordSuccess()
+                OfflinePasswordVerifier.getInstance(context).reset {
+                    Toast.makeText(context, R.string.password_reset, Toast.LENGTH_SHORT).show()
+                }
+            }
+
+            override fun onAuthenticationError(errorCode: Int, errString: CharSequence) {
+                super.onAuthenticationError(errorCode, errString)
+                if (errorCode != BiometricPrompt.ERROR_USER_CANCELED &&
+                        errorCode != BiometricPrompt.ERROR_CANCELED) {
+                    Toast.makeText(fragmentActivity, errString, Toast.LENGTH_LONG).show()
+                }
+            }
+        }
+        return BiometricPrompt(fragmentActivity, ContextCompat.getMainExecutor(fragmentActivity),
+                callback)
+    }
+
+    override fun onDestroy() {
+        AuthSettings.getInstance(activity).useFingerprint.removeObserver(useFingerprintObserver)
+        super.onDestroy()
     }
 
 }
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package com.example.android.biometricauth
+
+import com.example.android.biometricauth.OfflinePasswordVerifier.Companion.DEFAULT_TARGET_MILLIS
+import com.example.android.biometricauth.OfflinePasswordVerifier.Companion.MAX_ITERATIONS
+import com.example.android.biometricauth.OfflinePasswordVerifier.Companion.MIN_ITERATIONS
+import com.example.android.biometricauth.OfflinePasswordVerifier.Companion.PBKDF2_SHA256
+import java.util.concurrent.TimeUnit
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+
+/**
+ * Maps PBKDF2 iteration counts to hashing latency on the JVM, and checks that calibration keeps
+ * a hash near [DEFAULT_TARGET_MILLIS] within the [MIN_ITERATIONS]..[MAX_ITERATIONS] clamp.
+ */
+class OfflinePasswordVerifierTest {
+
+    private val password = "correct horse".toCharArray()
+    private val salt = ByteArray(16) { it.toByte() }
+
+    @Before
+    fun warmUp() {
+        // Compile the hash first, as calibrating on an interpreted probe overshoots the target.
+        repeat(WARMUP_HASHES) {
+            OfflinePasswordVerifier.hash(PBKDF2_SHA256, password.copyOf(), salt, MIN_ITERATIONS)
+        }
+    }
+
+    @Test
+    fun latencyGrowsWithIterations() {
+        var previousMillis = 0L
+        for (iterations in intArrayOf(MIN_ITERATIONS, 5 * MIN_ITERATIONS, 25 * MIN_ITERATIONS)) {
+            val millis = hashMillis(iterations)
+            println("$iterations iterations of $PBKDF2_SHA256: $millis ms")
+            assertTrue("$iterations iterations took $millis ms", millis >= previousMillis)
+            previousMillis = millis
+        }
+    }
+
+    @Test
+    fun calibratedHashTakesAboutTarget() {
+        val iterations = OfflinePasswordVerifier.calibrate(PBKDF2_SHA256, DEFAULT_TARGET_MILLIS,
+                System::nanoTime)
+        val millis = hashMillis(iterations)
+        println("Calibrated to $iterations iterations, which took $millis ms")
+
+        assertTrue(iterations in MIN_ITERATIONS..MAX_ITERATIONS)
+        // Only a clamped count may miss the target, and then only in the clamped direction.
+        if (iterations in (MIN_ITERATIONS + 1) until MAX_ITERATIONS) {
+            assertTrue("$millis ms", millis in DEFAULT_TARGET_MILLIS / 2..DEFAULT_TARGET_MILLIS * 2)
+        } else if (iterations == MIN_ITERATIONS) {
+            assertTrue("$millis ms", millis >= DEFAULT_TARGET_MILLIS / 2)
+        } else {
+            assertTrue("$millis ms", millis <= DEFAULT_TARGET_MILLIS * 2)
+        }
+    }
+
+    @Test
+    fun scalesToTargetFromMeasuredTime() {
+        // 10k iterations taking 10 ms means 250 ms needs 250k.
+        assertEquals(250_000, calibrate(TimeUnit.MILLISECONDS.toNanos(10)))
+    }
+
+    @Test
+    fun clampsSlowDevicesToMinimum() {
+        assertEquals(MIN_ITERATIONS, calibrate(TimeUnit.SECONDS.toNanos(10)))
+    }
+
+    @Test
+    fun clampsFastDevicesToMaximum() {
+        assertEquals(MAX_ITERATIONS, calibrate(1L))
+        assertEquals(MAX_ITERATIONS, calibrate(0L))
+    }
+
+    /** Calibrates with a clock that makes the probe hash appear to take [elapsedNanos]. */
+    private fun calibrate(elapsedNanos: Long): Int {
+        var now = 0L
+        var reads = 0
+        return OfflinePasswordVerifier.calibrate(PBKDF2_SHA256, DEFAULT_TARGET_MILLIS) {
+            // Every other read ends a probe.
+            if (reads++ % 2 == 1) now += elapsedNanos
+            now
+        }
+    }
+
+    /** The fastest of a few hashes, so that a pause in the middle of one does not count. */
+    private fun hashMillis(iterations: Int): Long = (1..3).map {
+        val start = System.nanoTime()
+        OfflinePasswordVerifier.hash(PBKDF2_SHA256, password.copyOf(), salt, iterations)
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+    }.reduce { a, b -> Math.min(a, b) }
+
+    private companion object {
+        const val WARMUP_HASHES = 20
+    }
+}
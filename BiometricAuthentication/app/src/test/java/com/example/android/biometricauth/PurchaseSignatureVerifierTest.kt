@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.android.biometricauth
+
+import java.security.KeyPair
+import java.security.KeyPairGenerator
+import java.security.Signature
+import java.security.spec.ECGenParameterSpec
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class PurchaseSignatureVerifierTest {
+
+    private val keyPair = generateKeyPair()
+    private val workers = Executors.newFixedThreadPool(2)
+    private val verifier = PurchaseSignatureVerifier(keyPair.public, workers, parallelism = 2)
+
+    @After
+    fun tearDown() {
+        workers.shutdownNow()
+    }
+
+    @Test
+    fun acceptsSignedPurchase() {
+        assertTrue(verifier.verify(sign(Purchase(amountCents = 6268L))))
+    }
+
+    @Test
+    fun rejectsChangedAmount() {
+        val signed = sign(Purchase(amountCents = 6268L))
+        val tampered = SignedPurchase(signed.purchase.copy(amountCents = 1L), signed.nonce,
+                signed.signature)
+
+        assertFalse(verifier.verify(tampered))
+    }
+
+    @Test
+    fun rejectsChangedNonce() {
+        val signed = sign(Purchase(amountCents = 6268L))
+        val replayed = SignedPurchase(signed.purchase, ByteArray(NONCE_SIZE), signed.signature)
+
+        assertFalse(verifier.verify(replayed))
+    }
+
+    @Test
+    fun rejectsSignatureFromOtherKey() {
+        val signed = sign(Purchase(amountCents = 6268L), generateKeyPair())
+
+        assertFalse(verifier.verify(signed))
+    }
+
+    @Test
+    fun rejectsMalformedSignature() {
+        val purchase = Purchase(amountCents = 6268L)
+
+        val malformed = SignedPurchase(purchase, ByteArray(NONCE_SIZE), byteArrayOf(1))
+
+        assertFalse(verifier.verify(malformed))
+    }
+
+    @Test
+    fun countsValidAndInvalidInBatch() {
+        val batch = (1..9).map { i ->
+            val signed = sign(Purchase(amountCents = i.toLong()))
+            if (i % 3 == 0) {
+                SignedPurchase(signed.purchase.copy(amountCents = 0L), signed.nonce,
+                        signed.signature)
+            } else {
+                signed
+            }
+        }
+
+        val report = verifier.verifyAll(batch)
+
+        assertEquals(6, report.valid)
+        assertEquals(3, report.invalid)
+    }
+
+    @Test
+    fun verifiesEmptyBatch() {
+        val report = verifier.verifyAll(emptyList())
+
+        assertEquals(0, report.valid)
+        assertEquals(0, report.invalid)
+    }
+
+    @Test
+    fun verifiesBatchFromItsOwnWorker() {
+        val singleWorker = Executors.newSingleThreadExecutor()
+        try {
+            val onWorker = PurchaseSignatureVerifier(keyPair.public, singleWorker, parallelism = 4)
+            val batch = (1..8).map { sign(Purchase(amountCents = it.toLong())) }
+
+            val report = singleWorker.submit<PurchaseSignatureVerifier.Report> {
+                onWorker.verifyAll(batch)
+            }.get(10, TimeUnit.SECONDS)
+
+            assertEquals(8, report.valid)
+        } finally {
+            singleWorker.shutdownNow()
+        }
+    }
+
+    private fun sign(purchase: Purchase, signingKeys: KeyPair = keyPair): SignedPurchase {
+        val nonce = ByteArray(NONCE_SIZE) { it.toByte() }
+        val signature = Signature.getInstance(PurchaseSignatureVerifier.SIGNATURE_ALGORITHM).run {
+            initSign(signingKeys.private)
+            update(nonce)
+            update(purchase.encode())
+            sign()
+        }
+        return SignedPurchase(purchase, nonce, signature)
+    }
+
+    private fun generateKeyPair(): KeyPair = KeyPairGenerator.getInstance("EC").run {
+        initialize(ECGenParameterSpec("secp256r1"))
+        generateKeyPair()
+    }
+
+    private companion object {
+        const val NONCE_SIZE = 16
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.biometricloginsample
+
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
+/**
+ * Process-wide executors, so that keystore and disk work never runs on the main thread.
+ */
+object AppExecutors {
+
+    /**
+     * Runs keystore work (loading the keystore, generating keys, `Cipher.init`) one task at a time,
+     * so that a key being generated and a Cipher being initialized for it can never race.
+     */
+    val keystore: ExecutorService = Executors.newSingleThreadExecutor { runnable ->
+        Thread(runnable, "keystore")
+    }
+
+    /**
+     * Runs disk reads and writes, such as loading the stored ciphertext, one task at a time.
+     */
+    val diskIO: ExecutorService = Executors.newSingleThreadExecutor { runnable ->
+        Thread(runnable, "disk-io")
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2020 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.biometricloginsample
+
+import java.util.UUID
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Sends the user's credentials to your authentication server. Implementations may block: they are
+ * always called from a background thread, and [LoginWithPasswordViewModel] enforces a timeout.
+ */
+interface Authenticator {
+
+    /**
+     * @return the token issued by the server, or null if the credentials were rejected. The caller
+     * takes ownership of the array, so that it can be wiped once the session ends.
+     */
+    fun authenticate(username: String, password: String): ByteArray?
+}
+
+/**
+ * An in-process stand-in for the authentication server. It accepts any credentials, or only
+ * [acceptedPassword] if one is given, issues a random token after [latencyMillis], and counts the
+ * requests it received, which makes it possible to measure login throughput and latency without a
+ * network. Rejected passwords exercise the [AttemptLimiter] on the password side.
+ */
+class FakeAuthServer(
+    private val latencyMillis: Long = 0L,
+    private val acceptedPassword: String? = null
+) : Authenticator {
+
+    private val _requestCount = AtomicInteger()
+    val requestCount: Int
+        get() = _requestCount.get()
+
+    override fun authenticate(username: String, password: String): ByteArray? {
+        _requestCount.incrementAndGet()
+        if (latencyMillis > 0) Thread.sleep(latencyMillis)
+        if (acceptedPassword != null && password != acceptedPassword) return null
+        return UUID.randomUUID().toString().toByteArray(Charsets.UTF_8)
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2020 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.biometricloginsample
+
+import android.app.Application
+import android.os.StrictMode
+
+class BiometricLoginApplication : Application() {
+
+    override fun onCreate() {
+        if (BuildConfig.DEBUG) {
+            // Installed before any activity starts, so disk access that creeps back onto the main
+            // thread anywhere in the app crashes debug builds and the tests that run them.
+            StrictMode.setThreadPolicy(
+                StrictMode.ThreadPolicy.Builder()
+                    .detectDiskReads()
+                    .detectDiskWrites()
+                    .detectCustomSlowCalls()
+                    .penaltyLog()
+                    .penaltyDeath()
+                    .build()
+            )
+        }
+        super.onCreate()
+    }
+}
@@ -16,39 +16,51 @@
 
 package com.example.biometricloginsample
 
-import android.util.Log
+import android.widget.Toast
 import androidx.appcompat.app.AppCompatActivity
 import androidx.biometric.BiometricPrompt
 import androidx.core.content.ContextCompat
+import javax.crypto.Cipher
 
 // Since we are using the same methods in more than one Activity, better give them their own file.
 object BiometricPromptUtils {
-    private const val TAG = "BiometricPromptUtils"
     fun createBiometricPrompt(
         activity: AppCompatActivity,
         processSuccess: (BiometricPrompt.AuthenticationResult) -> Unit
     ): BiometricPrompt {
         val executor = ContextCompat.getMainExecutor(activity)
+        val attemptLimiter = AttemptLimiter.getInstance(activity.applicationContext)
+        lateinit var biometricPrompt: BiometricPrompt
 
         val callback = object : BiometricPrompt.AuthenticationCallback() {
 
             override fun onAuthenticationError(errCode: Int, errString: CharSequence) {
                 super.onAuthenticationError(errCode, errString)
-                Log.d(TAG, "errCode is $errCode and errString is: $errString")
+                AuthTrace.event(AuthTrace.AUTH_ERROR, errCode.toLong())
             }
 
             override fun onAuthenticationFailed() {
                 super.onAuthenticationFailed()
-                Log.d(TAG, "Biometric authentication failed for unknown reason.")
+                AuthTrace.event(AuthTrace.AUTH_FAILED)
+                if (attemptLimiter.recordFailure() > 0) {
+                    biometricPrompt.cancelAuthentication()
+                    showLockedOut(activity)
+                }
             }
 
             override fun onAuthenticationSucceeded(result: BiometricPrompt.AuthenticationResult) {
                 super.onAuthenticationSucceeded(result)
-                Log.d(TAG, "Authentication was successful")
+                AuthTrace.event(AuthTrace.AUTH_SUCCEEDED)
+                attemptLimiter.recordSuccess()
                 processSuccess(result)
             }
         }
-        return BiometricPrompt(activity, executor, callback)
+        biometricPrompt = BiometricPrompt(activity, executor, callback)
+        return biometricPrompt
+    }
+
+    fun showLockedOut(activity: AppCompatActivity) {
+        Toast.makeText(activity, R.string.too_many_attempts, Toast.LENGTH_LONG).show()
     }
 
     fun createPromptInfo(activity: AppCompatActivity): BiometricPrompt.PromptInfo =
@@ -59,4 +71,40 @@ object BiometricPromptUtils {
             setConfirmationRequired(false)
             setNegativeButtonText(activity.getString(R.string.prompt_info_use_app_password))
         }.build()
-}
\ No newline at end of file
+}
+
+/**
+ * Builds the [BiometricPrompt] and its [BiometricPrompt.PromptInfo] once per activity, so that
+ * repeated authentications only allocate the [BiometricPrompt.CryptoObject].
+ *
+ * Create it in `onCreate`: when the activity is recreated after a configuration change, the
+ * biometric library hands an authentication that is still in progress over to the prompt built by
+ * the new instance, and its result is routed to whatever [onSuccess] handler is set at that time.
+ */
+class BiometricPromptController(private val activity: AppCompatActivity) {
+
+    var onSuccess: (BiometricPrompt.AuthenticationResult) -> Unit = {}
+
+    private val promptInfo = BiometricPromptUtils.createPromptInfo(activity)
+
+    private val biometricPrompt =
+        BiometricPromptUtils.createBiometricPrompt(activity) { result -> onSuccess(result) }
+
+    private val attemptLimiter = AttemptLimiter.getInstance(activity.applicationContext)
+
+    fun authenticate(cipher: Cipher) {
+        if (isLockedOut()) return
+        biometricPrompt.authenticate(promptInfo, BiometricPrompt.CryptoObject(cipher))
+        AuthTrace.event(AuthTrace.PROMPT_SHOWN)
+    }
+
+    fun cancelAuthentication() {
+        biometricPrompt.cancelAuthentication()
+    }
+
+    private fun isLockedOut(): Boolean {
+        if (attemptLimiter.remainingLockoutMillis() == 0L) return false
+        BiometricPromptUtils.showLockedOut(activity)
+        return true
+    }
+}
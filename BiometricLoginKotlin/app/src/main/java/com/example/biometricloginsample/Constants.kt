@@ -16,4 +16,8 @@
 package com.example.biometricloginsample
 
 const val SHARED_PREFS_FILENAME = "biometric_prefs"
-const val CIPHERTEXT_WRAPPER = "ciphertext_wrapper"
\ No newline at end of file
+const val CIPHERTEXT_WRAPPER = "ciphertext_wrapper"
+const val WRAPPED_DATA_KEY = "wrapped_data_key"
+const val SECRET_VAULT_FILENAME = "secret_vault"
+const val DEFAULT_DATA_KEY_TIMEOUT_MS = 5 * 60 * 1000L
+const val DEFAULT_SESSION_TTL_MS = 30 * 60 * 1000L
@@ -17,13 +17,13 @@
 package com.example.biometricloginsample
 
 import android.content.Context
-import android.security.keystore.KeyGenParameterSpec
+import android.os.SystemClock
 import android.security.keystore.KeyProperties
-import com.google.gson.Gson
-import java.nio.charset.Charset
-import java.security.KeyStore
+import android.util.Log
+import java.nio.ByteBuffer
+import java.nio.CharBuffer
+import java.util.concurrent.ConcurrentHashMap
 import javax.crypto.Cipher
-import javax.crypto.KeyGenerator
 import javax.crypto.SecretKey
 import javax.crypto.spec.GCMParameterSpec
 
@@ -36,6 +36,22 @@ interface CryptographyManager {
 
     fun getInitializedCipherForDecryption(keyName: String, initializationVector: ByteArray): Cipher
 
+    /**
+     * Whether a key named [keyName] already exists in the keystore
+     */
+    fun hasSecretKey(keyName: String): Boolean
+
+    /**
+     * Deletes the key named [keyName]. Anything encrypted with it can no longer be decrypted.
+     */
+    fun deleteSecretKey(keyName: String)
+
+    /**
+     * Which backend the key named [keyName] landed on and how long the keystore took to generate
+     * it and to initialize Ciphers with it, or null if this manager has not used that key yet.
+     */
+    fun getKeyProvisioningRecord(keyName: String): KeyProvisioningRecord?
+
     /**
      * The Cipher created with [getInitializedCipherForEncryption] is used here
      */
@@ -46,6 +62,59 @@ interface CryptographyManager {
      */
     fun decryptData(ciphertext: ByteArray, cipher: Cipher): String
 
+    /**
+     * Encrypts the remaining bytes of [plaintext] straight into [output], which may be a direct
+     * buffer sized with [Cipher.getOutputSize]. The IV is available from [Cipher.getIV] afterwards.
+     * No intermediate arrays are created here, so the caller can [wipe] both buffers once done.
+     *
+     * @return the number of bytes written to [output]
+     */
+    fun encryptData(plaintext: ByteBuffer, output: ByteBuffer, cipher: Cipher): Int
+
+    /**
+     * Encrypts the remaining characters of [plaintext] as UTF-8. The encoded bytes only live in a
+     * scratch buffer that is wiped before returning.
+     *
+     * @return the number of bytes written to [output]
+     */
+    fun encryptData(plaintext: CharBuffer, output: ByteBuffer, cipher: Cipher): Int
+
+    /**
+     * Decrypts the remaining bytes of [ciphertext] straight into [output], which may be a direct
+     * buffer sized with [Cipher.getOutputSize].
+     *
+     * @return the number of bytes written to [output]
+     */
+    fun decryptData(ciphertext: ByteBuffer, output: ByteBuffer, cipher: Cipher): Int
+
+    /**
+     * Decrypts the remaining bytes of [ciphertext] into [output] as UTF-8 characters, without ever
+     * creating a String. The intermediate plaintext bytes are wiped before returning.
+     *
+     * @return the number of characters written to [output]
+     */
+    fun decryptData(ciphertext: ByteBuffer, output: CharBuffer, cipher: Cipher): Int
+
+    /**
+     * Envelope mode: generates a software data key and wraps it with the Cipher created with
+     * [getInitializedCipherForEncryption]. Persist [DataKeySession.wrappedDataKey] so the same
+     * data key can be opened again with [openDataKeySession].
+     */
+    fun createDataKeySession(
+        cipher: Cipher,
+        timeoutMillis: Long = DEFAULT_DATA_KEY_TIMEOUT_MS
+    ): DataKeySession
+
+    /**
+     * Envelope mode: unwraps the data key with the Cipher created with
+     * [getInitializedCipherForDecryption], using the IV of [wrappedDataKey].
+     */
+    fun openDataKeySession(
+        wrappedDataKey: CiphertextWrapper,
+        cipher: Cipher,
+        timeoutMillis: Long = DEFAULT_DATA_KEY_TIMEOUT_MS
+    ): DataKeySession
+
     fun persistCiphertextWrapperToSharedPrefs(
         ciphertextWrapper: CiphertextWrapper,
         context: Context,
@@ -63,24 +132,43 @@ interface CryptographyManager {
 
 }
 
-fun CryptographyManager(): CryptographyManager = CryptographyManagerImpl()
+/**
+ * @param clock monotonic time in milliseconds, used to time key generation and `Cipher.init`
+ * @param logger receives warnings, such as a StrongBox key being replaced with a TEE one
+ */
+fun CryptographyManager(
+    keyProvisioningPolicy: KeyProvisioningPolicy = KeyProvisioningPolicy(),
+    keyStoreProvider: KeyStoreProvider = AndroidKeyStoreProvider(),
+    clock: () -> Long = { SystemClock.elapsedRealtime() },
+    logger: (message: String) -> Unit = { Log.w(TAG, it) }
+): CryptographyManager =
+    CryptographyManagerImpl(keyProvisioningPolicy, keyStoreProvider, clock, logger)
+
+private const val TAG = "CryptographyManager"
 
 /**
  * To get an instance of this private CryptographyManagerImpl class, use the top-level function
  * fun CryptographyManager(): CryptographyManager = CryptographyManagerImpl()
  */
-private class CryptographyManagerImpl : CryptographyManager {
+private class CryptographyManagerImpl(
+    private val keyProvisioningPolicy: KeyProvisioningPolicy,
+    private val keyStoreProvider: KeyStoreProvider,
+    private val clock: () -> Long,
+    private val logger: (message: String) -> Unit
+) : CryptographyManager {
 
     private val KEY_SIZE = 256
-    private val ANDROID_KEYSTORE = "AndroidKeyStore"
     private val ENCRYPTION_BLOCK_MODE = KeyProperties.BLOCK_MODE_GCM
     private val ENCRYPTION_PADDING = KeyProperties.ENCRYPTION_PADDING_NONE
     private val ENCRYPTION_ALGORITHM = KeyProperties.KEY_ALGORITHM_AES
+    private val TRANSFORMATION = "$ENCRYPTION_ALGORITHM/$ENCRYPTION_BLOCK_MODE/$ENCRYPTION_PADDING"
+
+    private val keyProvisioningRecords = ConcurrentHashMap<String, KeyProvisioningRecord>()
 
     override fun getInitializedCipherForEncryption(keyName: String): Cipher {
         val cipher = getCipher()
         val secretKey = getOrCreateSecretKey(keyName)
-        cipher.init(Cipher.ENCRYPT_MODE, secretKey)
+        timeCipherInit(keyName) { cipher.init(Cipher.ENCRYPT_MODE, secretKey) }
         return cipher
     }
 
@@ -90,50 +178,140 @@ private class CryptographyManagerImpl : CryptographyManager {
     ): Cipher {
         val cipher = getCipher()
         val secretKey = getOrCreateSecretKey(keyName)
-        cipher.init(Cipher.DECRYPT_MODE, secretKey, GCMParameterSpec(128, initializationVector))
+        timeCipherInit(keyName) {
+            cipher.init(Cipher.DECRYPT_MODE, secretKey, GCMParameterSpec(128, initializationVector))
+        }
         return cipher
     }
 
-    override fun encryptData(plaintext: String, cipher: Cipher): CiphertextWrapper {
-        val ciphertext = cipher.doFinal(plaintext.toByteArray(Charset.forName("UTF-8")))
-        return CiphertextWrapper(ciphertext, cipher.iv)
+    override fun hasSecretKey(keyName: String): Boolean = keyStoreProvider.containsKey(keyName)
+
+    override fun deleteSecretKey(keyName: String) {
+        keyStoreProvider.deleteKey(keyName)
+        keyProvisioningRecords.remove(keyName)
+    }
+
+    override fun getKeyProvisioningRecord(keyName: String): KeyProvisioningRecord? =
+        keyProvisioningRecords[keyName]
+
+    override fun encryptData(plaintext: String, cipher: Cipher): CiphertextWrapper =
+        cipher.encryptString(plaintext)
+
+    override fun decryptData(ciphertext: ByteArray, cipher: Cipher): String =
+        cipher.decryptString(ciphertext)
+
+    override fun encryptData(plaintext: ByteBuffer, output: ByteBuffer, cipher: Cipher): Int =
+        cipher.doFinal(plaintext, output)
+
+    override fun encryptData(plaintext: CharBuffer, output: ByteBuffer, cipher: Cipher): Int =
+        cipher.encryptChars(plaintext, output)
+
+    override fun decryptData(ciphertext: ByteBuffer, output: ByteBuffer, cipher: Cipher): Int =
+        cipher.doFinal(ciphertext, output)
+
+    override fun decryptData(ciphertext: ByteBuffer, output: CharBuffer, cipher: Cipher): Int =
+        cipher.decryptChars(ciphertext, output)
+
+    override fun createDataKeySession(cipher: Cipher, timeoutMillis: Long): DataKeySession {
+        val dataKey = DataKeySession.generateDataKey()
+        val wrappedDataKey = CiphertextWrapper(cipher.doFinal(dataKey), cipher.iv)
+        return DataKeySession(dataKey, wrappedDataKey, timeoutMillis)
     }
 
-    override fun decryptData(ciphertext: ByteArray, cipher: Cipher): String {
-        val plaintext = cipher.doFinal(ciphertext)
-        return String(plaintext, Charset.forName("UTF-8"))
+    override fun openDataKeySession(
+        wrappedDataKey: CiphertextWrapper,
+        cipher: Cipher,
+        timeoutMillis: Long
+    ): DataKeySession {
+        val dataKey = cipher.doFinal(wrappedDataKey.ciphertext)
+        return DataKeySession(dataKey, wrappedDataKey, timeoutMillis)
     }
 
     private fun getCipher(): Cipher {
-        val transformation = "$ENCRYPTION_ALGORITHM/$ENCRYPTION_BLOCK_MODE/$ENCRYPTION_PADDING"
-        return Cipher.getInstance(transformation)
+        return Cipher.getInstance(TRANSFORMATION)
     }
 
     private fun getOrCreateSecretKey(keyName: String): SecretKey {
         // If Secretkey was previously created for that keyName, then grab and return it.
-        val keyStore = KeyStore.getInstance(ANDROID_KEYSTORE)
-        keyStore.load(null) // Keystore must be loaded before it can be accessed
-        keyStore.getKey(keyName, null)?.let { return it as SecretKey }
+        keyStoreProvider.getSecretKey(keyName)?.let { secretKey ->
+            keyProvisioningRecords.getOrPut(keyName) {
+                KeyProvisioningRecord(keyName, keyStoreProvider.getBackend(secretKey), null)
+            }
+            return secretKey
+        }
 
         // if you reach here, then a new SecretKey must be generated for that keyName
-        val paramsBuilder = KeyGenParameterSpec.Builder(
+        if (keyProvisioningPolicy.preferStrongBox) {
+            provisionStrongBoxSecretKey(keyName)?.let { return it }
+        }
+        val start = clock()
+        val secretKey = keyStoreProvider.generateSecretKey(secretKeyRequest(keyName, false))
+            ?: throw IllegalStateException("Could not generate key $keyName")
+        val generationMillis = clock() - start
+        val backend = keyStoreProvider.getBackend(secretKey)
+        keyProvisioningRecords[keyName] = KeyProvisioningRecord(keyName, backend, generationMillis)
+        return secretKey
+    }
+
+    /**
+     * Generates the key in StrongBox and checks that generating it and initializing a Cipher with
+     * it fits in [KeyProvisioningPolicy.maxStrongBoxLatencyMillis]. Keys with a
+     * [KeyProvisioningPolicy.userAuthenticationValiditySeconds] window cannot initialize a Cipher
+     * until the user authenticates, so only their generation is timed.
+     *
+     * @return the key, or null if this device has no StrongBox or if it is too slow, in which case
+     * the caller falls back to the TEE
+     */
+    private fun provisionStrongBoxSecretKey(keyName: String): SecretKey? {
+        val start = clock()
+        val secretKey = keyStoreProvider.generateSecretKey(secretKeyRequest(keyName, true))
+            ?: return null
+        val generationMillis = clock() - start
+        val cipherInitMillis = if (keyProvisioningPolicy.userAuthenticationValiditySeconds > 0) {
+            null
+        } else {
+            // Encryption Ciphers for per-operation keys can be initialized before the user
+            // authenticates, so this measures the Cipher.init latency every later prompt will pay.
+            val cipherInitStart = clock()
+            getCipher().init(Cipher.ENCRYPT_MODE, secretKey)
+            clock() - cipherInitStart
+        }
+        val provisioningMillis = generationMillis + (cipherInitMillis ?: 0L)
+        if (provisioningMillis > keyProvisioningPolicy.maxStrongBoxLatencyMillis) {
+            logger("StrongBox took $provisioningMillis ms for $keyName, falling back to TEE")
+            keyStoreProvider.deleteKey(keyName)
+            return null
+        }
+        keyProvisioningRecords[keyName] = KeyProvisioningRecord(
             keyName,
-            KeyProperties.PURPOSE_ENCRYPT or KeyProperties.PURPOSE_DECRYPT
+            KeyBackend.STRONGBOX,
+            generationMillis,
+            cipherInitMillis
         )
-        paramsBuilder.apply {
-            setBlockModes(ENCRYPTION_BLOCK_MODE)
-            setEncryptionPaddings(ENCRYPTION_PADDING)
-            setKeySize(KEY_SIZE)
-            setUserAuthenticationRequired(true)
+        return secretKey
+    }
+
+    private fun secretKeyRequest(keyName: String, strongBoxBacked: Boolean) =
+        with(keyProvisioningPolicy) {
+            SecretKeyRequest(
+                keyName = keyName,
+                keySize = KEY_SIZE,
+                blockMode = ENCRYPTION_BLOCK_MODE,
+                padding = ENCRYPTION_PADDING,
+                userAuthenticationRequired = true,
+                userAuthenticationValiditySeconds = userAuthenticationValiditySeconds,
+                strongBoxBacked = strongBoxBacked,
+                unlockedDeviceRequired = unlockedDeviceRequired
+            )
         }
 
-        val keyGenParams = paramsBuilder.build()
-        val keyGenerator = KeyGenerator.getInstance(
-            KeyProperties.KEY_ALGORITHM_AES,
-            ANDROID_KEYSTORE
-        )
-        keyGenerator.init(keyGenParams)
-        return keyGenerator.generateKey()
+    private inline fun timeCipherInit(keyName: String, init: () -> Unit) {
+        val start = clock()
+        init()
+        val cipherInitMillis = clock() - start
+        keyProvisioningRecords[keyName]?.let { record ->
+            keyProvisioningRecords[keyName] = record.copy(lastCipherInitMillis = cipherInitMillis)
+        }
     }
 
     override fun persistCiphertextWrapperToSharedPrefs(
@@ -143,7 +321,7 @@ private class CryptographyManagerImpl : CryptographyManager {
         mode: Int,
         prefKey: String
     ) {
-        val json = Gson().toJson(ciphertextWrapper)
+        val json = CiphertextWrapperJson.toJson(ciphertextWrapper)
         context.getSharedPreferences(filename, mode).edit().putString(prefKey, json).apply()
     }
 
@@ -154,9 +332,6 @@ private class CryptographyManagerImpl : CryptographyManager {
         prefKey: String
     ): CiphertextWrapper? {
         val json = context.getSharedPreferences(filename, mode).getString(prefKey, null)
-        return Gson().fromJson(json, CiphertextWrapper::class.java)
+        return CiphertextWrapperJson.fromJson(json)
     }
 }
-
-
-data class CiphertextWrapper(val ciphertext: ByteArray, val initializationVector: ByteArray)
\ No newline at end of file
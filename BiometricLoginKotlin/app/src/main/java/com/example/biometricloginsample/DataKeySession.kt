@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.biometricloginsample
+
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
+import androidx.lifecycle.Lifecycle
+import androidx.lifecycle.LifecycleObserver
+import androidx.lifecycle.OnLifecycleEvent
+import androidx.lifecycle.ProcessLifecycleOwner
+import java.security.SecureRandom
+import java.util.Arrays
+import javax.crypto.Cipher
+import javax.crypto.SecretKey
+import javax.crypto.spec.GCMParameterSpec
+
+/**
+ * Envelope mode: a software AES data key that was wrapped (or unwrapped) by the biometric-bound
+ * keystore key. Once the user has authenticated a single time, any number of secrets can be
+ * encrypted and decrypted with this session without going back to the keystore.
+ *
+ * The hardware-backed key stays the root of trust: only [wrappedDataKey] is ever persisted, and
+ * it can only be opened again with a Cipher that was authorized through BiometricPrompt.
+ *
+ * The session is closed when [close] is called, when [timeoutMillis] elapses or when the app goes
+ * to the background, whichever comes first. Closing overwrites the data key. The Cipher is handed
+ * the key array itself rather than a copy, so that copy is wiped as well; only the key schedule
+ * the provider derives from it internally is out of reach.
+ *
+ * To get an instance, use [CryptographyManager.createDataKeySession] or
+ * [CryptographyManager.openDataKeySession].
+ */
+class DataKeySession internal constructor(
+    dataKey: ByteArray,
+    val wrappedDataKey: CiphertextWrapper,
+    timeoutMillis: Long
+) {
+    private val expiresAt = SystemClock.elapsedRealtime() + timeoutMillis
+    private var key: DataKey? = DataKey(dataKey)
+    private val cipher = Cipher.getInstance(TRANSFORMATION)
+    private val mainHandler = Handler(Looper.getMainLooper())
+    private val closeRunnable = Runnable { close() }
+
+    // Leaving the foreground ends the session, so a backgrounded app never keeps the key around.
+    private val processObserver = object : LifecycleObserver {
+        @OnLifecycleEvent(Lifecycle.Event.ON_STOP)
+        fun onProcessStop() = close()
+    }
+
+    init {
+        mainHandler.postDelayed(closeRunnable, timeoutMillis)
+        mainHandler.post { ProcessLifecycleOwner.get().lifecycle.addObserver(processObserver) }
+    }
+
+    val isOpen: Boolean
+        @Synchronized get() = key != null && SystemClock.elapsedRealtime() < expiresAt
+
+    /**
+     * Encrypts [plaintext] with the data key. Every call uses a fresh random IV.
+     */
+    @Synchronized
+    fun encryptData(plaintext: ByteArray): CiphertextWrapper {
+        val iv = ByteArray(GCM_IV_SIZE).also { secureRandom.nextBytes(it) }
+        cipher.init(Cipher.ENCRYPT_MODE, requireKey(), GCMParameterSpec(GCM_TAG_SIZE, iv))
+        return CiphertextWrapper(cipher.doFinal(plaintext), iv)
+    }
+
+    /**
+     * Decrypts a [CiphertextWrapper] previously created by [encryptData]. The caller owns the
+     * returned array and should wipe it once done.
+     */
+    @Synchronized
+    fun decryptData(ciphertextWrapper: CiphertextWrapper): ByteArray {
+        cipher.init(
+            Cipher.DECRYPT_MODE,
+            requireKey(),
+            GCMParameterSpec(GCM_TAG_SIZE, ciphertextWrapper.initializationVector)
+        )
+        return cipher.doFinal(ciphertextWrapper.ciphertext)
+    }
+
+    /**
+     * Overwrites the data key and drops it. The session cannot be used afterwards; authenticate
+     * again and call [CryptographyManager.openDataKeySession] to get a new one.
+     */
+    @Synchronized
+    fun close() {
+        val closingKey = key ?: return
+        closingKey.destroy()
+        key = null
+        mainHandler.removeCallbacks(closeRunnable)
+        mainHandler.post { ProcessLifecycleOwner.get().lifecycle.removeObserver(processObserver) }
+    }
+
+    private fun requireKey(): SecretKey {
+        if (SystemClock.elapsedRealtime() >= expiresAt) close()
+        return key ?: throw IllegalStateException("The data key session has been closed")
+    }
+
+    /**
+     * Unlike SecretKeySpec, which clones the key material into an array nobody can wipe, this
+     * returns [encoded] itself, so [destroy] also clears whatever the provider kept of it.
+     */
+    private class DataKey(private val encoded: ByteArray) : SecretKey {
+
+        @Volatile
+        private var destroyed = false
+
+        override fun getAlgorithm(): String = ENCRYPTION_ALGORITHM
+
+        override fun getFormat(): String = "RAW"
+
+        override fun getEncoded(): ByteArray {
+            check(!destroyed) { "The data key has been destroyed" }
+            return encoded
+        }
+
+        override fun destroy() {
+            Arrays.fill(encoded, 0.toByte())
+            destroyed = true
+        }
+
+        override fun isDestroyed(): Boolean = destroyed
+    }
+
+    internal companion object {
+        private const val DATA_KEY_SIZE = 32 // 256 bits
+        private const val GCM_IV_SIZE = 12
+        private const val GCM_TAG_SIZE = 128
+        private const val ENCRYPTION_ALGORITHM = "AES"
+        private const val TRANSFORMATION = "AES/GCM/NoPadding"
+        private val secureRandom = SecureRandom()
+
+        fun generateDataKey(): ByteArray =
+            ByteArray(DATA_KEY_SIZE).also { secureRandom.nextBytes(it) }
+    }
+}
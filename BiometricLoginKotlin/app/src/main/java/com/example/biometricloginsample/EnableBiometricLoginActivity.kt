@@ -15,29 +15,52 @@
  */
 package com.example.biometricloginsample
 
-import android.content.Context
 import android.os.Bundle
 import android.util.Log
 import android.view.inputmethod.EditorInfo
+import android.widget.Toast
 import androidx.activity.viewModels
 import androidx.appcompat.app.AppCompatActivity
 import androidx.biometric.BiometricManager
 import androidx.biometric.BiometricPrompt
+import androidx.core.content.ContextCompat
 import androidx.core.widget.doAfterTextChanged
+import androidx.lifecycle.Lifecycle
 import androidx.lifecycle.Observer
+import androidx.lifecycle.ViewModel
 import com.example.biometricloginsample.databinding.ActivityEnableBiometricLoginBinding
+import java.io.IOException
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicBoolean
+import javax.crypto.Cipher
 
 class EnableBiometricLoginActivity : AppCompatActivity() {
     private val TAG = "EnableBiometricLogin"
-    private lateinit var cryptographyManager: CryptographyManager
-    private val loginViewModel by viewModels<LoginWithPasswordViewModel>()
+    private val cryptographyManager = CryptographyManager()
+    private lateinit var biometricPromptController: BiometricPromptController
+    private val loginViewModel by viewModels<LoginWithPasswordViewModel> {
+        LoginWithPasswordViewModel.Factory(this)
+    }
+    private val keyOwnership by viewModels<KeyOwnership>()
+    private lateinit var pendingCipher: Future<Cipher>
+    private var serverTokenStored = false
 
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
         val binding = ActivityEnableBiometricLoginBinding.inflate(layoutInflater)
         setContentView(binding.root)
+        biometricPromptController = BiometricPromptController(this).apply {
+            onSuccess = ::encryptAndStoreServerToken
+        }
         binding.cancel.setOnClickListener { finish() }
 
+        if (savedInstanceState?.getBoolean(STATE_GENERATED_SECRET_KEY) == true) {
+            keyOwnership.generatedSecretKey.set(true)
+        }
+        prepareCipherForEncryption()
+
         loginViewModel.loginWithPasswordFormState.observe(this, Observer { formState ->
             val loginState = formState ?: return@Observer
             when (loginState) {
@@ -52,6 +75,10 @@ class EnableBiometricLoginActivity : AppCompatActivity() {
             val loginResult = it ?: return@Observer
             if (loginResult.success) {
                 showBiometricPromptForEncryption()
+            } else {
+                loginResult.error?.let { error ->
+                    Toast.makeText(this, error, Toast.LENGTH_SHORT).show()
+                }
             }
         })
         binding.username.doAfterTextChanged {
@@ -81,33 +108,135 @@ class EnableBiometricLoginActivity : AppCompatActivity() {
         }
     }
 
+    /**
+     * Generating a hardware-backed key can take hundreds of milliseconds, so start it as soon as
+     * the screen opens. By the time the password has been checked, the Cipher is usually ready.
+     */
+    private fun prepareCipherForEncryption() {
+        val secretKeyName = getString(R.string.secret_key_name)
+        val generatedSecretKey = keyOwnership.generatedSecretKey
+        pendingCipher = AppExecutors.keystore.submit(Callable {
+            AuthTrace.section(AuthTrace.CIPHER_INIT) {
+                getInitializedCipherForEncryption(secretKeyName, generatedSecretKey)
+            }
+        })
+    }
+
+    /**
+     * Claims the key before generating it, on the keystore thread, so that a rollback queued
+     * behind this task on [AppExecutors.keystore] always knows whether there is a key to delete.
+     */
+    private fun getInitializedCipherForEncryption(
+        secretKeyName: String,
+        generatedSecretKey: AtomicBoolean
+    ): Cipher {
+        if (!cryptographyManager.hasSecretKey(secretKeyName)) generatedSecretKey.set(true)
+        return cryptographyManager.getInitializedCipherForEncryption(secretKeyName)
+    }
+
     private fun showBiometricPromptForEncryption() {
-        val canAuthenticate = BiometricManager.from(applicationContext).canAuthenticate()
-        if (canAuthenticate == BiometricManager.BIOMETRIC_SUCCESS) {
-            val secretKeyName = getString(R.string.secret_key_name)
-            cryptographyManager = CryptographyManager()
-            val cipher = cryptographyManager.getInitializedCipherForEncryption(secretKeyName)
-            val biometricPrompt =
-                BiometricPromptUtils.createBiometricPrompt(this, ::encryptAndStoreServerToken)
-            val promptInfo = BiometricPromptUtils.createPromptInfo(this)
-            biometricPrompt.authenticate(promptInfo, BiometricPrompt.CryptoObject(cipher))
+        val secretKeyName = getString(R.string.secret_key_name)
+        val mainExecutor = ContextCompat.getMainExecutor(this)
+        val cipherFuture = pendingCipher
+        val generatedSecretKey = keyOwnership.generatedSecretKey
+        AuthTrace.event(AuthTrace.PROMPT_REQUESTED)
+        // AppExecutors.keystore runs one task at a time, so this only starts once the key
+        // pre-generation submitted in onCreate has finished.
+        AppExecutors.keystore.execute {
+            val canAuthenticate = AuthTrace.section(AuthTrace.CAN_AUTHENTICATE) {
+                BiometricManager.from(applicationContext).canAuthenticate()
+            }
+            if (canAuthenticate != BiometricManager.BIOMETRIC_SUCCESS) return@execute
+            val cipher = try {
+                cipherFuture.get()
+            } catch (e: ExecutionException) {
+                Log.w(TAG, "Key pre-generation failed, retrying", e.cause)
+                try {
+                    getInitializedCipherForEncryption(secretKeyName, generatedSecretKey)
+                } catch (retryException: Exception) {
+                    mainExecutor.execute { onCipherInitFailed(retryException) }
+                    return@execute
+                }
+            }
+            mainExecutor.execute {
+                if (lifecycle.currentState.isAtLeast(Lifecycle.State.RESUMED)) {
+                    biometricPromptController.authenticate(cipher)
+                }
+            }
         }
     }
 
+    private fun onCipherInitFailed(e: Exception) {
+        Log.e(TAG, "Could not prepare the key for biometric login", e)
+        if (isDestroyed) return
+        Toast.makeText(this, R.string.enable_biometric_login_failed, Toast.LENGTH_LONG).show()
+    }
+
+    /**
+     * Envelope mode: the authorized Cipher wraps a fresh data key, and the data key encrypts the
+     * token. More secrets could be stored in the vault under the same data key, and all of them
+     * read back after a single prompt.
+     */
     private fun encryptAndStoreServerToken(authResult: BiometricPrompt.AuthenticationResult) {
-        authResult.cryptoObject?.cipher?.apply {
-            SampleAppUser.fakeToken?.let { token ->
-                Log.d(TAG, "The token from server is $token")
-                val encryptedServerTokenWrapper = cryptographyManager.encryptData(token, this)
-                cryptographyManager.persistCiphertextWrapperToSharedPrefs(
-                    encryptedServerTokenWrapper,
-                    applicationContext,
-                    SHARED_PREFS_FILENAME,
-                    Context.MODE_PRIVATE,
-                    CIPHERTEXT_WRAPPER
-                )
+        authResult.cryptoObject?.cipher?.let { cipher ->
+            val session = cryptographyManager.createDataKeySession(cipher)
+            val encryptedServerTokenWrapper = try {
+                UserSession.withToken { token ->
+                    AuthTrace.section(AuthTrace.ENCRYPT) { session.encryptData(token) }
+                }
+            } finally {
+                session.close()
+            }
+            if (encryptedServerTokenWrapper != null) {
+                val appContext = applicationContext
+                // AppExecutors.diskIO runs one task at a time, so LoginActivity cannot read the
+                // vault before this write is done.
+                AppExecutors.diskIO.execute {
+                    try {
+                        val vault = SecretVault.getInstance(appContext)
+                        vault.put(WRAPPED_DATA_KEY, session.wrappedDataKey)
+                        vault.put(CIPHERTEXT_WRAPPER, encryptedServerTokenWrapper)
+                    } catch (e: IOException) {
+                        Log.e(TAG, "Could not store the token", e)
+                    }
+                }
+                serverTokenStored = true
             }
         }
         finish()
     }
-}
\ No newline at end of file
+
+    override fun onSaveInstanceState(outState: Bundle) {
+        super.onSaveInstanceState(outState)
+        outState.putBoolean(STATE_GENERATED_SECRET_KEY, keyOwnership.generatedSecretKey.get())
+    }
+
+    override fun onDestroy() {
+        if (isFinishing && !serverTokenStored) {
+            // The user backed out before biometric login was enabled: roll back the key that was
+            // speculatively generated for them. The key may still be generating, so only decide
+            // once AppExecutors.keystore gets to this task, after the generation.
+            val secretKeyName = getString(R.string.secret_key_name)
+            val generatedSecretKey = keyOwnership.generatedSecretKey
+            AppExecutors.keystore.execute {
+                if (generatedSecretKey.getAndSet(false)) {
+                    cryptographyManager.deleteSecretKey(secretKeyName)
+                }
+            }
+        }
+        super.onDestroy()
+    }
+
+    private companion object {
+        const val STATE_GENERATED_SECRET_KEY = "generated_secret_key"
+    }
+}
+
+/**
+ * Whether [EnableBiometricLoginActivity] generated the key, in which case it rolls the key back if
+ * the user leaves without enabling biometric login. Kept in a ViewModel so that a key generated for
+ * one instance of the screen is still rolled back by the next one after a configuration change.
+ */
+internal class KeyOwnership : ViewModel() {
+    val generatedSecretKey = AtomicBoolean()
+}
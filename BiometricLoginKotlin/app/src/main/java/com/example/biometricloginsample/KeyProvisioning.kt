@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.biometricloginsample
+
+import android.os.Build
+import android.security.keystore.KeyGenParameterSpec
+import android.security.keystore.KeyInfo
+import android.security.keystore.KeyProperties
+import android.security.keystore.StrongBoxUnavailableException
+import androidx.annotation.RequiresApi
+import java.security.KeyStore
+import javax.crypto.KeyGenerator
+import javax.crypto.SecretKey
+import javax.crypto.SecretKeyFactory
+
+/**
+ * Where a key lives.
+ */
+enum class KeyBackend {
+    STRONGBOX,
+    TEE,
+    SOFTWARE
+}
+
+/**
+ * How [CryptographyManager] provisions the keys it creates.
+ *
+ * @param preferStrongBox try to generate keys in StrongBox first, on devices that have one
+ * @param maxStrongBoxLatencyMillis if generating a StrongBox key and initializing a Cipher with it
+ * takes longer than this, the key is generated again in the TEE instead
+ * @param unlockedDeviceRequired keys can only be used while the device is unlocked (API 28+)
+ * @param userAuthenticationValiditySeconds how long keys stay usable after the user authenticated,
+ * or -1 to require a BiometricPrompt with a CryptoObject for every operation
+ */
+data class KeyProvisioningPolicy(
+    val preferStrongBox: Boolean = true,
+    val maxStrongBoxLatencyMillis: Long = 500L,
+    val unlockedDeviceRequired: Boolean = false,
+    val userAuthenticationValiditySeconds: Int = -1
+)
+
+/**
+ * Which backend a key landed on and how long the keystore took to provision and use it.
+ *
+ * @param generationMillis time spent generating the key, or null if it was generated by an earlier
+ * process
+ * @param lastCipherInitMillis time spent in the most recent `Cipher.init` with this key
+ */
+data class KeyProvisioningRecord(
+    val keyName: String,
+    val backend: KeyBackend,
+    val generationMillis: Long?,
+    val lastCipherInitMillis: Long? = null
+)
+
+/**
+ * Everything a [KeyStoreProvider] needs to know to generate an AES key.
+ */
+data class SecretKeyRequest(
+    val keyName: String,
+    val keySize: Int,
+    val blockMode: String,
+    val padding: String,
+    val userAuthenticationRequired: Boolean,
+    val userAuthenticationValiditySeconds: Int,
+    val strongBoxBacked: Boolean,
+    val unlockedDeviceRequired: Boolean
+)
+
+/**
+ * The keystore operations [CryptographyManager] relies on. Swap in another implementation to
+ * exercise a [KeyProvisioningPolicy] without the Android keystore, for instance on the JVM.
+ */
+interface KeyStoreProvider {
+
+    fun getSecretKey(keyName: String): SecretKey?
+
+    fun containsKey(keyName: String): Boolean
+
+    fun deleteKey(keyName: String)
+
+    /**
+     * @return the new key, or null if [SecretKeyRequest.strongBoxBacked] was requested and this
+     * device has no StrongBox
+     */
+    fun generateSecretKey(request: SecretKeyRequest): SecretKey?
+
+    /**
+     * Best-effort backend of a key this provider did not just generate.
+     */
+    fun getBackend(secretKey: SecretKey): KeyBackend
+}
+
+/**
+ * [KeyStoreProvider] backed by the Android keystore, which is loaded once per provider.
+ */
+class AndroidKeyStoreProvider : KeyStoreProvider {
+
+    private val keyStore: KeyStore by lazy {
+        KeyStore.getInstance(ANDROID_KEYSTORE).apply {
+            load(null) // Keystore must be loaded before it can be accessed
+        }
+    }
+
+    override fun getSecretKey(keyName: String): SecretKey? =
+        keyStore.getKey(keyName, null) as SecretKey?
+
+    override fun containsKey(keyName: String): Boolean = keyStore.containsAlias(keyName)
+
+    override fun deleteKey(keyName: String) {
+        keyStore.deleteEntry(keyName)
+    }
+
+    override fun generateSecretKey(request: SecretKeyRequest): SecretKey? {
+        val isStrongBoxSupported = Build.VERSION.SDK_INT >= Build.VERSION_CODES.P
+        if (request.strongBoxBacked && !isStrongBoxSupported) return null
+
+        val paramsBuilder = KeyGenParameterSpec.Builder(
+            request.keyName,
+            KeyProperties.PURPOSE_ENCRYPT or KeyProperties.PURPOSE_DECRYPT
+        )
+        paramsBuilder.apply {
+            setBlockModes(request.blockMode)
+            setEncryptionPaddings(request.padding)
+            setKeySize(request.keySize)
+            setUserAuthenticationRequired(request.userAuthenticationRequired)
+            if (request.userAuthenticationValiditySeconds > 0) {
+                setUserAuthenticationValidityDurationSeconds(
+                    request.userAuthenticationValiditySeconds
+                )
+            }
+            if (isStrongBoxSupported) {
+                setIsStrongBoxBacked(request.strongBoxBacked)
+                setUnlockedDeviceRequired(request.unlockedDeviceRequired)
+            }
+        }
+
+        val keyGenerator = KeyGenerator.getInstance(
+            KeyProperties.KEY_ALGORITHM_AES,
+            ANDROID_KEYSTORE
+        )
+        keyGenerator.init(paramsBuilder.build())
+        return if (request.strongBoxBacked) {
+            Api28Impl.generateStrongBoxKey(keyGenerator)
+        } else {
+            keyGenerator.generateKey()
+        }
+    }
+
+    /**
+     * [KeyInfo] only tells apart StrongBox and TEE keys from API 31, so secure hardware keys that
+     * were generated by an earlier process are reported as [KeyBackend.TEE].
+     */
+    override fun getBackend(secretKey: SecretKey): KeyBackend {
+        val factory = SecretKeyFactory.getInstance(secretKey.algorithm, ANDROID_KEYSTORE)
+        val keyInfo = factory.getKeySpec(secretKey, KeyInfo::class.java) as KeyInfo
+        return if (keyInfo.isInsideSecureHardware) KeyBackend.TEE else KeyBackend.SOFTWARE
+    }
+
+    private companion object {
+        const val ANDROID_KEYSTORE = "AndroidKeyStore"
+    }
+
+    /**
+     * StrongBoxUnavailableException only exists from API 28, so it is caught in a class that is
+     * never loaded on older devices.
+     */
+    @RequiresApi(Build.VERSION_CODES.P)
+    private object Api28Impl {
+
+        fun generateStrongBoxKey(keyGenerator: KeyGenerator): SecretKey? = try {
+            keyGenerator.generateKey()
+        } catch (e: StrongBoxUnavailableException) {
+            null
+        }
+    }
+}
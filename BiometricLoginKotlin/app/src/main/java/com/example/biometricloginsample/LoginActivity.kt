@@ -15,18 +15,25 @@
  */
 package com.example.biometricloginsample
 
-import android.content.Context
 import android.content.Intent
 import android.os.Bundle
 import android.util.Log
 import android.view.inputmethod.EditorInfo
+import android.widget.Toast
 import androidx.activity.viewModels
 import androidx.appcompat.app.AppCompatActivity
 import androidx.biometric.BiometricManager
 import androidx.biometric.BiometricPrompt
+import androidx.core.content.ContextCompat
 import androidx.core.widget.doAfterTextChanged
+import androidx.lifecycle.Lifecycle
 import androidx.lifecycle.Observer
 import com.example.biometricloginsample.databinding.ActivityLoginBinding
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.security.GeneralSecurityException
+import java.util.concurrent.Future
+import javax.crypto.Cipher
 
 /**
  * 1) after entering "valid" username and password, login button becomes enabled
@@ -35,44 +42,81 @@ import com.example.biometricloginsample.databinding.ActivityLoginBinding
  *   - b) if template exists, ask user to confirm by entering username & password
  */
 class LoginActivity : AppCompatActivity() {
-    private val TAG = "LoginActivity"
-    private lateinit var biometricPrompt: BiometricPrompt
+    private lateinit var biometricPromptController: BiometricPromptController
+    private var promptPreparation: Future<*>? = null
     private val cryptographyManager = CryptographyManager()
-    private val ciphertextWrapper
-        get() = cryptographyManager.getCiphertextWrapperFromSharedPrefs(
-            applicationContext,
-            SHARED_PREFS_FILENAME,
-            Context.MODE_PRIVATE,
-            CIPHERTEXT_WRAPPER
-        )
     private lateinit var binding: ActivityLoginBinding
-    private val loginWithPasswordViewModel by viewModels<LoginWithPasswordViewModel>()
+    private val loginWithPasswordViewModel by viewModels<LoginWithPasswordViewModel> {
+        LoginWithPasswordViewModel.Factory(this)
+    }
+
+    // Loaded on AppExecutors.diskIO every time the activity resumes, and only read on the main
+    // thread afterwards.
+    private var ciphertextWrapper: CiphertextWrapper? = null
+    private var wrappedDataKey: CiphertextWrapper? = null
+    private var isCiphertextWrapperLoaded = false
+    private var isLoginWithPasswordSetUp = false
 
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
         binding = ActivityLoginBinding.inflate(layoutInflater)
         setContentView(binding.root)
+        biometricPromptController = BiometricPromptController(this).apply {
+            onSuccess = ::decryptServerTokenFromStorage
+        }
         binding.useBiometrics.setOnClickListener {
+            if (!isCiphertextWrapperLoaded) return@setOnClickListener
             if (ciphertextWrapper != null) {
                 showBiometricPromptForDecryption()
             } else {
                 startActivity(Intent(this, EnableBiometricLoginActivity::class.java))
             }
         }
-        if (ciphertextWrapper == null) {
-            setupForLoginWithPassword()
-        }
     }
 
     /**
      * The logic is kept inside onResume instead of onCreate so that authorizing biometrics takes
-     * immediate effect.
+     * immediate effect. Opening the [SecretVault] and reading the stored token both happen off the
+     * main thread.
      */
     override fun onResume() {
         super.onResume()
+        val mainExecutor = ContextCompat.getMainExecutor(this)
+        AppExecutors.diskIO.execute {
+            var storedCiphertextWrapper: CiphertextWrapper? = null
+            var storedDataKey: CiphertextWrapper? = null
+            AuthTrace.section(AuthTrace.READ_CIPHERTEXT) {
+                try {
+                    val vault = SecretVault.getInstance(applicationContext)
+                    storedCiphertextWrapper = vault.getCiphertextWrapper(CIPHERTEXT_WRAPPER)
+                    storedDataKey = vault.getCiphertextWrapper(WRAPPED_DATA_KEY)
+                } catch (e: IOException) {
+                    Log.e(TAG, "Could not read the stored token", e)
+                }
+            }
+            mainExecutor.execute {
+                onCiphertextWrapperLoaded(storedCiphertextWrapper, storedDataKey)
+            }
+        }
+    }
 
-        if (ciphertextWrapper != null) {
-            if (SampleAppUser.fakeToken == null) {
+    /**
+     * @param storedDataKey the data key the token is encrypted with, or null if the keystore key
+     * encrypted the token directly, as earlier versions of the sample did
+     */
+    private fun onCiphertextWrapperLoaded(
+        storedCiphertextWrapper: CiphertextWrapper?,
+        storedDataKey: CiphertextWrapper?
+    ) {
+        val isFirstLoad = !isCiphertextWrapperLoaded
+        ciphertextWrapper = storedCiphertextWrapper
+        wrappedDataKey = storedDataKey
+        isCiphertextWrapperLoaded = true
+
+        if (storedCiphertextWrapper == null) {
+            if (!isLoginWithPasswordSetUp) setupForLoginWithPassword()
+        } else if (lifecycle.currentState.isAtLeast(Lifecycle.State.RESUMED)) {
+            if (!UserSession.isAuthenticated) {
                 showBiometricPromptForDecryption()
             } else {
                 // The user has already logged in, so proceed to the rest of the app
@@ -80,37 +124,79 @@ class LoginActivity : AppCompatActivity() {
                 updateApp(getString(R.string.already_signedin))
             }
         }
+        // The screen only knows which login flow to offer once the stored token has been looked
+        // up, so this is the point startup measurements should stop at.
+        if (isFirstLoad) reportFullyDrawn()
+    }
+
+    override fun onDestroy() {
+        promptPreparation?.cancel(true)
+        super.onDestroy()
     }
 
     // BIOMETRICS SECTION
 
+    /**
+     * Checking for biometrics and `Cipher.init` both hit the keystore, so they run on
+     * [AppExecutors.keystore]. The prompt is shown once the Cipher is ready, unless the activity
+     * has gone away in the meantime. If the Cipher cannot be initialized, for instance because a
+     * new fingerprint invalidated the key, the user is told and offered the password login.
+     */
     private fun showBiometricPromptForDecryption() {
-        ciphertextWrapper?.let { textWrapper ->
-            val canAuthenticate = BiometricManager.from(applicationContext).canAuthenticate()
-            if (canAuthenticate == BiometricManager.BIOMETRIC_SUCCESS) {
-                val secretKeyName = getString(R.string.secret_key_name)
-                val cipher = cryptographyManager.getInitializedCipherForDecryption(
-                    secretKeyName, textWrapper.initializationVector
-                )
-                biometricPrompt =
-                    BiometricPromptUtils.createBiometricPrompt(
-                        this,
-                        ::decryptServerTokenFromStorage
+        if (promptPreparation?.isDone == false) return
+        val textWrapper = ciphertextWrapper ?: return
+        // The keystore key decrypts the data key when there is one, and the token otherwise.
+        val initializationVector = (wrappedDataKey ?: textWrapper).initializationVector
+        val secretKeyName = getString(R.string.secret_key_name)
+        val mainExecutor = ContextCompat.getMainExecutor(this)
+        AuthTrace.event(AuthTrace.PROMPT_REQUESTED)
+        promptPreparation = AppExecutors.keystore.submit(Runnable {
+            val canAuthenticate = AuthTrace.section(AuthTrace.CAN_AUTHENTICATE) {
+                BiometricManager.from(applicationContext).canAuthenticate()
+            }
+            if (canAuthenticate != BiometricManager.BIOMETRIC_SUCCESS) return@Runnable
+            // The Future is only kept to cancel the preparation, so nothing would ever see an
+            // exception it captured. Report it here instead.
+            val cipher = try {
+                AuthTrace.section(AuthTrace.CIPHER_INIT) {
+                    cryptographyManager.getInitializedCipherForDecryption(
+                        secretKeyName, initializationVector
                     )
-                val promptInfo = BiometricPromptUtils.createPromptInfo(this)
-                biometricPrompt.authenticate(promptInfo, BiometricPrompt.CryptoObject(cipher))
+                }
+            } catch (e: Exception) {
+                mainExecutor.execute { onCipherInitFailed(e) }
+                return@Runnable
             }
-        }
+            if (Thread.currentThread().isInterrupted) return@Runnable
+            mainExecutor.execute {
+                // The activity may have been paused or destroyed while the Cipher was prepared.
+                if (!lifecycle.currentState.isAtLeast(Lifecycle.State.RESUMED)) return@execute
+                biometricPromptController.authenticate(cipher)
+            }
+        })
+    }
+
+    private fun onCipherInitFailed(e: Exception) {
+        Log.e(TAG, "Could not prepare biometric login", e)
+        if (isDestroyed) return
+        Toast.makeText(this, R.string.biometric_login_unavailable, Toast.LENGTH_LONG).show()
+        if (!isLoginWithPasswordSetUp) setupForLoginWithPassword()
     }
 
     private fun decryptServerTokenFromStorage(authResult: BiometricPrompt.AuthenticationResult) {
         ciphertextWrapper?.let { textWrapper ->
             authResult.cryptoObject?.cipher?.let {
-                val plaintext =
-                    cryptographyManager.decryptData(textWrapper.ciphertext, it)
-                SampleAppUser.fakeToken = plaintext
+                val token = try {
+                    AuthTrace.section(AuthTrace.DECRYPT) { decryptToken(textWrapper, it) }
+                } catch (e: GeneralSecurityException) {
+                    // For instance a crash between storing a new data key and the token it
+                    // encrypts. Enabling biometric login again stores a matching pair.
+                    onCipherInitFailed(e)
+                    return
+                }
+                UserSession.put(token)
                 // Now that you have the token, you can query server for everything else
-                // the only reason we call this fakeToken is because we didn't really get it from
+                // the only reason we call this a fake token is because we didn't really get it from
                 // the server. In your case, you will have gotten it from the server the first time
                 // and therefore, it's a real token.
 
@@ -119,9 +205,39 @@ class LoginActivity : AppCompatActivity() {
         }
     }
 
+    /**
+     * Decrypts the token straight into bytes, which [UserSession] wipes once the session ends,
+     * rather than into a String that would stay around until it is garbage collected.
+     *
+     * When the token is kept under a data key, the authorized Cipher opens a [DataKeySession].
+     * Any other secret stored under the same data key could be decrypted with that session too,
+     * without prompting the user again.
+     */
+    private fun decryptToken(textWrapper: CiphertextWrapper, cipher: Cipher): ByteArray {
+        val dataKey = wrappedDataKey
+        if (dataKey != null) {
+            val session = cryptographyManager.openDataKeySession(dataKey, cipher)
+            try {
+                return session.decryptData(textWrapper)
+            } finally {
+                session.close()
+            }
+        }
+        val ciphertext = textWrapper.ciphertext
+        val output = ByteBuffer.allocate(cipher.getOutputSize(ciphertext.size))
+        try {
+            val length =
+                cryptographyManager.decryptData(ByteBuffer.wrap(ciphertext), output, cipher)
+            return output.array().copyOf(length)
+        } finally {
+            output.wipe()
+        }
+    }
+
     // USERNAME + PASSWORD SECTION
 
     private fun setupForLoginWithPassword() {
+        isLoginWithPasswordSetUp = true
         loginWithPasswordViewModel.loginWithPasswordFormState.observe(this, Observer { formState ->
             val loginState = formState ?: return@Observer
             when (loginState) {
@@ -136,9 +252,12 @@ class LoginActivity : AppCompatActivity() {
             val loginResult = it ?: return@Observer
             if (loginResult.success) {
                 updateApp(
-                    "You successfully signed up using password as: user " +
-                            "${SampleAppUser.username} with fake token ${SampleAppUser.fakeToken}"
+                    "You successfully signed up using password as: user ${UserSession.username}"
                 )
+            } else {
+                loginResult.error?.let { error ->
+                    Toast.makeText(this, error, Toast.LENGTH_SHORT).show()
+                }
             }
         })
         binding.username.doAfterTextChanged {
@@ -169,10 +288,13 @@ class LoginActivity : AppCompatActivity() {
                 binding.password.text.toString()
             )
         }
-        Log.d(TAG, "Username ${SampleAppUser.username}; fake token ${SampleAppUser.fakeToken}")
     }
 
     private fun updateApp(successMsg: String) {
         binding.success.text = successMsg
     }
+
+    private companion object {
+        const val TAG = "LoginActivity"
+    }
 }
\ No newline at end of file
@@ -15,12 +15,27 @@
  */
 package com.example.biometricloginsample
 
+import android.content.Context
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
+import android.util.Log
 import android.util.Patterns
 import androidx.lifecycle.LiveData
 import androidx.lifecycle.MutableLiveData
 import androidx.lifecycle.ViewModel
+import androidx.lifecycle.ViewModelProvider
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.FutureTask
+import java.util.regex.Matcher
 
-class LoginWithPasswordViewModel : ViewModel() {
+class LoginWithPasswordViewModel(
+    private val authenticator: Authenticator = FakeAuthServer(),
+    private val attemptLimiter: AttemptLimiter? = null
+) : ViewModel() {
 
     private val _loginForm = MutableLiveData<LoginFormState>()
     val loginWithPasswordFormState: LiveData<LoginFormState> = _loginForm
@@ -28,20 +43,55 @@ class LoginWithPasswordViewModel : ViewModel() {
     private val _loginResult = MutableLiveData<LoginResult>()
     val loginResult: LiveData<LoginResult> = _loginResult
 
+    private val mainHandler = Handler(Looper.getMainLooper())
+
+    // Validation runs on its own thread, at most once per burst of keystrokes.
+    private val validationExecutor = Executors.newSingleThreadExecutor()
+    private var pendingUsername = ""
+    private var pendingPassword = ""
+    private val validateRunnable = Runnable {
+        val username = pendingUsername
+        val password = pendingPassword
+        validationExecutor.execute { validate(username, password) }
+    }
+
+    // Only touched from validationExecutor
+    private val emailMatcher = Patterns.EMAIL_ADDRESS.matcher("")
+    private var lastFormState: LoginFormState? = null
+
+    private val loginExecutor = Executors.newSingleThreadExecutor()
+    // Only touched from the main thread
+    private var pendingLogin: Future<ByteArray?>? = null
+
     fun onLoginDataChanged(username: String, password: String) {
-        if (!isUserNameValid(username)) {
-            _loginForm.value = FailedLoginFormState(usernameError = R.string.invalid_username)
+        pendingUsername = username
+        pendingPassword = password
+        mainHandler.removeCallbacks(validateRunnable)
+        mainHandler.postDelayed(validateRunnable, VALIDATION_DEBOUNCE_MS)
+    }
+
+    private fun validate(username: String, password: String) {
+        val formState = if (!isUserNameValid(username, emailMatcher)) {
+            FailedLoginFormState(usernameError = R.string.invalid_username)
         } else if (!isPasswordValid(password)) {
-            _loginForm.value = FailedLoginFormState(passwordError = R.string.invalid_password)
+            FailedLoginFormState(passwordError = R.string.invalid_password)
         } else {
-            _loginForm.value = SuccessfulLoginFormState(isDataValid = true)
+            SuccessfulLoginFormState(isDataValid = true)
+        }
+        // Only dispatch when the state actually changes.
+        if (formState != lastFormState) {
+            lastFormState = formState
+            _loginForm.postValue(formState)
         }
     }
 
     // A placeholder username validation check
-    private fun isUserNameValid(username: String): Boolean {
+    private fun isUserNameValid(
+        username: String,
+        emailMatcher: Matcher = Patterns.EMAIL_ADDRESS.matcher("")
+    ): Boolean {
         return if (username.contains('@')) {
-            Patterns.EMAIL_ADDRESS.matcher(username).matches()
+            emailMatcher.reset(username).matches()
         } else {
             username.isNotBlank()
         }
@@ -52,20 +102,97 @@ class LoginWithPasswordViewModel : ViewModel() {
         return password.length > 5
     }
 
+    override fun onCleared() {
+        mainHandler.removeCallbacks(validateRunnable)
+        validationExecutor.shutdownNow()
+        pendingLogin?.let { mainHandler.removeCallbacksAndMessages(it) }
+        pendingLogin = null
+        loginExecutor.shutdownNow()
+        super.onCleared()
+    }
+
+    /**
+     * Sends the credentials to the [authenticator] on a background thread and posts the outcome to
+     * [loginResult]. While a request is in flight, further calls are ignored, so a double tap on
+     * the login button or the IME action followed by a tap only sends one request.
+     */
     fun login(username: String, password: String) {
-        if (isUserNameValid(username) && isPasswordValid(password)) {
-            // Normally this method would asynchronously send this to your server and your sever
-            // would return a token. For high sensitivity apps such as banking, you would keep that
-            // token in transient memory similar to my SampleAppUser object. This way the user
-            // must login each time they start the app.
-            // In this sample, we don't call a server. Instead we use a fake token that we set
-            // right here:
-
-            SampleAppUser.username = username
-            SampleAppUser.fakeToken = java.util.UUID.randomUUID().toString()
+        if (!isUserNameValid(username) || !isPasswordValid(password)) {
+            _loginResult.value = LoginResult(false, R.string.login_failed)
+            return
+        }
+        if (pendingLogin != null) return
+        if (attemptLimiter != null && attemptLimiter.remainingLockoutMillis() > 0) {
+            _loginResult.value = LoginResult(false, R.string.too_many_attempts)
+            return
+        }
+
+        // Normally your server would return a token. For high sensitivity apps such as banking,
+        // you would keep that token in transient memory similar to my UserSession object. This way
+        // the user must login each time they start the app.
+        // In this sample, we don't call a server. Instead the default authenticator is a
+        // FakeAuthServer that hands out a fake token.
+        val requestedAt = SystemClock.elapsedRealtime()
+        val request = object : FutureTask<ByteArray?>(Callable {
+            authenticator.authenticate(username, password)
+        }) {
+            override fun done() {
+                mainHandler.post { onLoginFinished(this, username, requestedAt) }
+            }
+        }
+        pendingLogin = request
+        loginExecutor.execute(request)
+        // The request itself is the token, so the timeout can be removed once the request is done.
+        mainHandler.postAtTime(
+            { request.cancel(true) },
+            request,
+            SystemClock.uptimeMillis() + LOGIN_TIMEOUT_MS
+        )
+    }
+
+    private fun onLoginFinished(request: Future<ByteArray?>, username: String, requestedAt: Long) {
+        if (request !== pendingLogin) return
+        pendingLogin = null
+        mainHandler.removeCallbacksAndMessages(request)
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Login request took ${SystemClock.elapsedRealtime() - requestedAt} ms")
+        }
+
+        val token = try {
+            if (request.isCancelled) {
+                _loginResult.value = LoginResult(false, R.string.login_timed_out)
+                return
+            }
+            request.get()
+        } catch (e: ExecutionException) {
+            Log.e(TAG, "Login request failed", e.cause)
+            null
+        }
+        if (token != null) {
+            attemptLimiter?.recordSuccess()
+            UserSession.put(token = token, username = username)
             _loginResult.value = LoginResult(true)
         } else {
-            _loginResult.value = LoginResult(true)
+            val lockedOut = attemptLimiter != null && attemptLimiter.recordFailure() > 0
+            val error = if (lockedOut) R.string.too_many_attempts else R.string.login_failed
+            _loginResult.value = LoginResult(false, error)
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Creates [LoginWithPasswordViewModel]s that share the app's [AttemptLimiter].
+     */
+    class Factory(private val context: Context) : ViewModelProvider.Factory {
+        @Suppress("UNCHECKED_CAST")
+        override fun <T : ViewModel?> create(modelClass: Class<T>): T =
+            LoginWithPasswordViewModel(
+                attemptLimiter = AttemptLimiter.getInstance(context.applicationContext)
+            ) as T
+    }
+
+    private companion object {
+        const val TAG = "LoginWithPassword"
+        const val VALIDATION_DEBOUNCE_MS = 300L
+        const val LOGIN_TIMEOUT_MS = 10_000L
+    }
+}
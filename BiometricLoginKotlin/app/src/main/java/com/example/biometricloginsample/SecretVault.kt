@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.biometricloginsample
+
+import android.content.Context
+import android.util.Log
+import androidx.core.util.AtomicFile
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileNotFoundException
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+
+/**
+ * Stores many secrets (one per account or service) under string keys, each encrypted with its own
+ * IV by a [DataKeySession].
+ *
+ * The index lives in memory, so lookups are O(1) and only the requested record is decrypted. On
+ * disk the vault is an append-only log: every [put] or [remove] appends a single record, so the
+ * cost of an update does not grow with the number of entries. Once superseded records outnumber
+ * live ones, the log is compacted into a new file that only holds the live entries.
+ *
+ * Compaction goes through an [AtomicFile], which keeps the previous log as a backup until the new
+ * one is complete. Loading also goes through it, so a backup left behind by a crash is restored
+ * before anything is read or appended.
+ *
+ * Reading and writing the log is disk I/O, so call this class from a background thread.
+ */
+class SecretVault(private val file: File) {
+
+    private val atomicFile = AtomicFile(file)
+    private val index = HashMap<String, CiphertextWrapper>()
+    private var loaded = false
+    private var recordsInLog = 0
+
+    @Synchronized
+    fun put(key: String, plaintext: ByteArray, session: DataKeySession) {
+        put(key, session.encryptData(plaintext))
+    }
+
+    /**
+     * Stores an already encrypted record, for instance one created with a Cipher obtained from
+     * [CryptographyManager.getInitializedCipherForEncryption].
+     */
+    @Synchronized
+    fun put(key: String, ciphertextWrapper: CiphertextWrapper) {
+        ensureLoaded()
+        appendRecord(OP_PUT, key, ciphertextWrapper)
+        index[key] = ciphertextWrapper
+        maybeCompact()
+    }
+
+    /**
+     * Stores [ciphertextWrapper] under [key] unless the vault already has a record there.
+     *
+     * @return whether the record was stored
+     */
+    @Synchronized
+    fun putIfAbsent(key: String, ciphertextWrapper: CiphertextWrapper): Boolean {
+        if (contains(key)) return false
+        put(key, ciphertextWrapper)
+        return true
+    }
+
+    /**
+     * Decrypts the record stored under [key], or returns null if there is none. The caller owns
+     * the returned array and should wipe it once done.
+     */
+    @Synchronized
+    fun get(key: String, session: DataKeySession): ByteArray? =
+        getCiphertextWrapper(key)?.let { session.decryptData(it) }
+
+    @Synchronized
+    fun getCiphertextWrapper(key: String): CiphertextWrapper? {
+        ensureLoaded()
+        return index[key]
+    }
+
+    @Synchronized
+    fun remove(key: String) {
+        ensureLoaded()
+        if (index.remove(key) == null) return
+        appendRecord(OP_REMOVE, key, null)
+        maybeCompact()
+    }
+
+    @Synchronized
+    operator fun contains(key: String): Boolean {
+        ensureLoaded()
+        return index.containsKey(key)
+    }
+
+    val keys: Set<String>
+        @Synchronized get() {
+            ensureLoaded()
+            return HashSet(index.keys)
+        }
+
+    val size: Int
+        @Synchronized get() {
+            ensureLoaded()
+            return index.size
+        }
+
+    private fun ensureLoaded() {
+        if (loaded) return
+        try {
+            load()
+        } catch (e: IOException) {
+            // Leave nothing half loaded behind, so that the next call tries again from scratch.
+            index.clear()
+            recordsInLog = 0
+            throw e
+        }
+        loaded = true
+    }
+
+    private fun load() {
+        val stream = try {
+            atomicFile.openRead()
+        } catch (e: FileNotFoundException) {
+            return
+        }
+        var validLength = 0L
+        try {
+            DataInputStream(BufferedInputStream(stream)).use { input ->
+                if (input.readInt() != MAGIC) throw IOException("Not a secret vault: $file")
+                validLength = HEADER_SIZE
+                while (true) {
+                    val op = try {
+                        input.readByte()
+                    } catch (e: EOFException) {
+                        break
+                    }
+                    val key = input.readUTF()
+                    val ciphertextWrapper = when (op) {
+                        OP_PUT -> CiphertextWrapper(
+                            ciphertext = input.readByteArray(),
+                            initializationVector = input.readByteArray()
+                        ).also { index[key] = it }
+                        OP_REMOVE -> {
+                            index.remove(key)
+                            null
+                        }
+                        else -> throw IOException("Unknown vault record type $op")
+                    }
+                    recordsInLog++
+                    validLength += recordSize(key, ciphertextWrapper)
+                }
+            }
+        } catch (e: EOFException) {
+            // The process died halfway through an append. Drop the torn record so that the next
+            // append starts on a record boundary.
+            Log.w(TAG, "Truncating torn record at offset $validLength")
+            RandomAccessFile(file, "rw").use { it.setLength(validLength) }
+        }
+    }
+
+    private fun appendRecord(op: Byte, key: String, ciphertextWrapper: CiphertextWrapper?) {
+        // Serialise the record first and write it with a single call, so a crash can only ever
+        // leave a partial record at the very end of the log.
+        val record = ByteArrayOutputStream()
+        DataOutputStream(record).use { output ->
+            output.writeByte(op.toInt())
+            output.writeUTF(key)
+            ciphertextWrapper?.let {
+                output.writeByteArray(it.ciphertext)
+                output.writeByteArray(it.initializationVector)
+            }
+        }
+        val isNewFile = !file.exists() || file.length() == 0L
+        FileOutputStream(file, true).use { output ->
+            if (isNewFile) DataOutputStream(output).writeInt(MAGIC)
+            output.write(record.toByteArray())
+            output.fd.sync()
+        }
+        recordsInLog++
+    }
+
+    /**
+     * The number of bytes [appendRecord] writes for a record. [DataOutputStream.writeUTF] writes a
+     * two byte length followed by the key in modified UTF-8, where U+0000 takes two bytes.
+     */
+    private fun recordSize(key: String, ciphertextWrapper: CiphertextWrapper?): Long {
+        var keyLength = 0L
+        for (c in key) {
+            keyLength += when {
+                c in '\u0001'..'\u007f' -> 1
+                c <= '\u07ff' -> 2
+                else -> 3
+            }
+        }
+        val payloadLength = ciphertextWrapper?.let {
+            4L + it.ciphertext.size + 4L + it.initializationVector.size
+        } ?: 0L
+        return 1L + 2L + keyLength + payloadLength
+    }
+
+    private fun maybeCompact() {
+        if (recordsInLog < MIN_RECORDS_BEFORE_COMPACTION || recordsInLog < index.size * 2) return
+
+        val output = atomicFile.startWrite()
+        try {
+            DataOutputStream(BufferedOutputStream(output)).let { data ->
+                data.writeInt(MAGIC)
+                for ((key, ciphertextWrapper) in index) {
+                    data.writeByte(OP_PUT.toInt())
+                    data.writeUTF(key)
+                    data.writeByteArray(ciphertextWrapper.ciphertext)
+                    data.writeByteArray(ciphertextWrapper.initializationVector)
+                }
+                data.flush()
+            }
+            atomicFile.finishWrite(output)
+            recordsInLog = index.size
+        } catch (e: IOException) {
+            atomicFile.failWrite(output)
+            throw e
+        }
+    }
+
+    private fun DataInputStream.readByteArray(): ByteArray =
+        ByteArray(readInt()).also { readFully(it) }
+
+    private fun DataOutputStream.writeByteArray(bytes: ByteArray) {
+        writeInt(bytes.size)
+        write(bytes)
+    }
+
+    companion object {
+        private const val TAG = "SecretVault"
+        private const val MAGIC = 0x53564C31 // "SVL1"
+        private const val HEADER_SIZE = 4L
+        private const val OP_PUT: Byte = 1
+        private const val OP_REMOVE: Byte = 2
+        private const val MIN_RECORDS_BEFORE_COMPACTION = 64
+
+        @Volatile
+        private var instance: SecretVault? = null
+
+        fun open(context: Context, filename: String = SECRET_VAULT_FILENAME): SecretVault =
+            SecretVault(File(context.filesDir, filename))
+
+        /**
+         * Returns the vault the app keeps its secrets in. There is a single instance per process,
+         * since each instance keeps its own index of the log. The first call moves the token that
+         * earlier versions of the sample kept in SharedPreferences into the vault.
+         *
+         * This reads the disk, so call it from a background thread.
+         */
+        fun getInstance(context: Context): SecretVault =
+            instance ?: synchronized(this) {
+                instance ?: open(context.applicationContext).also {
+                    migrateFromSharedPrefs(context.applicationContext, it)
+                    instance = it
+                }
+            }
+
+        /**
+         * Moves the [CIPHERTEXT_WRAPPER] preference into [vault] under the same key. A record
+         * already in the vault is newer, so it is kept. The preference is removed either way, so
+         * that only one copy of the ciphertext is left on disk.
+         */
+        internal fun migrateFromSharedPrefs(context: Context, vault: SecretVault) {
+            val prefs = context.getSharedPreferences(SHARED_PREFS_FILENAME, Context.MODE_PRIVATE)
+            val json = prefs.getString(CIPHERTEXT_WRAPPER, null) ?: return
+            CiphertextWrapperJson.fromJson(json)?.let { vault.putIfAbsent(CIPHERTEXT_WRAPPER, it) }
+            prefs.edit().remove(CIPHERTEXT_WRAPPER).commit()
+        }
+    }
+}
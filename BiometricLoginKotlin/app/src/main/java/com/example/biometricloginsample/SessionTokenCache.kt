@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2020 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.biometricloginsample
+
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
+import java.util.Arrays
+
+/**
+ * Keeps the server token in transient memory for at most [ttlMillis], so the user does not have to
+ * decrypt it again on every screen, while bounding how long the plaintext stays around.
+ *
+ * [isAuthenticated] and [username] are a single volatile read and never block, since many callers
+ * check them on every screen. Storing, reading and wiping the token itself is synchronized.
+ */
+open class SessionTokenCache(
+    private val ttlMillis: Long = DEFAULT_SESSION_TTL_MS,
+    private val clock: () -> Long = { SystemClock.elapsedRealtime() }
+) {
+
+    private class Session(val username: String?, val token: ByteArray, val expiresAt: Long)
+
+    @Volatile
+    private var session: Session? = null
+
+    private val expiryHandler by lazy { Handler(Looper.getMainLooper()) }
+    private val expiryRunnable = Runnable { evictIfExpired() }
+
+    val isAuthenticated: Boolean
+        get() = session?.let { clock() < it.expiresAt } ?: false
+
+    val username: String?
+        get() = session?.takeIf { clock() < it.expiresAt }?.username
+
+    /**
+     * Starts a session with [token]. The cache takes ownership of the array and wipes it when the
+     * session ends, so the caller must not keep or change it. The token is never turned into a
+     * String, which could not be wiped.
+     */
+    @Synchronized
+    fun put(token: ByteArray, username: String? = null) {
+        wipe(session)
+        session = Session(username, token, clock() + ttlMillis)
+        expiryHandler.removeCallbacks(expiryRunnable)
+        expiryHandler.postDelayed(expiryRunnable, ttlMillis)
+    }
+
+    /**
+     * Lends the token bytes to [block], or returns null when there is no valid session. This is the
+     * only way to read the token. [block] must not change the array nor keep it after returning:
+     * it is wiped when the session ends.
+     */
+    @Synchronized
+    fun <T> withToken(block: (ByteArray) -> T): T? = currentSession()?.let { block(it.token) }
+
+    @Synchronized
+    fun invalidate() {
+        wipe(session)
+        session = null
+        expiryHandler.removeCallbacks(expiryRunnable)
+    }
+
+    @Synchronized
+    private fun evictIfExpired() {
+        currentSession()
+    }
+
+    private fun currentSession(): Session? {
+        val current = session ?: return null
+        if (clock() < current.expiresAt) return current
+        invalidate()
+        return null
+    }
+
+    private fun wipe(session: Session?) {
+        session?.let { Arrays.fill(it.token, 0.toByte()) }
+    }
+}
+
+/**
+ * The session of the signed-in user. For high sensitivity apps such as banking, the token is only
+ * ever kept here, in transient memory, so the user must log in each time they start the app.
+ */
+object UserSession : SessionTokenCache()
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.biometricloginsample
+
+import android.content.ContextWrapper
+import java.io.File
+import java.nio.file.Files
+import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class AttemptLimiterTest {
+
+    private val directory = Files.createTempDirectory("attempt-limiter").toFile()
+    private val file = File(directory, "attempt_limiter")
+    private val directExecutor = Executor { it.run() }
+    private val ioTasks = ArrayList<Runnable>()
+    private val queuedExecutor = Executor { synchronized(ioTasks) { ioTasks += it } }
+
+    // Time since boot and wall time, both in milliseconds.
+    private var now = 1_000_000L
+    private var wallTime = 1_600_000_000_000L
+
+    @After
+    fun tearDown() {
+        directory.deleteRecursively()
+    }
+
+    private fun limiter(persisted: Boolean = true, ioExecutor: Executor = directExecutor) =
+        AttemptLimiter(
+            fileProvider = if (persisted) { { file } } else null,
+            ioExecutor = ioExecutor,
+            maxFailures = 3,
+            windowMillis = 1000L,
+            baseLockoutMillis = 100L,
+            maxLockoutMillis = 350L,
+            clock = { now },
+            wallClock = { wallTime }
+        )
+
+    private fun advance(millis: Long) {
+        now += millis
+        wallTime += millis
+    }
+
+    @Test
+    fun locksOutAfterMaxFailures() {
+        val limiter = limiter(persisted = false)
+
+        assertEquals(0L, limiter.recordFailure())
+        assertEquals(0L, limiter.recordFailure())
+        assertEquals(100L, limiter.recordFailure())
+
+        advance(99L)
+        assertEquals(1L, limiter.remainingLockoutMillis())
+        advance(1L)
+        assertEquals(0L, limiter.remainingLockoutMillis())
+    }
+
+    @Test
+    fun doublesLockoutsInARowUpToMax() {
+        val limiter = limiter(persisted = false)
+
+        for (expected in longArrayOf(100L, 200L, 350L, 350L)) {
+            repeat(2) { limiter.recordFailure() }
+            assertEquals(expected, limiter.recordFailure())
+            advance(expected)
+        }
+    }
+
+    @Test
+    fun forgetsFailuresOutsideWindow() {
+        val limiter = limiter(persisted = false)
+
+        limiter.recordFailure()
+        limiter.recordFailure()
+        advance(1000L)
+
+        assertEquals(0L, limiter.recordFailure())
+    }
+
+    @Test
+    fun successResetsEverything() {
+        val limiter = limiter(persisted = false)
+        repeat(3) { limiter.recordFailure() }
+        advance(100L)
+        repeat(2) { limiter.recordFailure() }
+
+        limiter.recordSuccess()
+
+        assertEquals(0L, limiter.remainingLockoutMillis())
+        assertEquals(0L, limiter.recordFailure())
+        assertEquals(0L, limiter.recordFailure())
+        assertEquals(100L, limiter.recordFailure()) // Back to the base lockout.
+    }
+
+    @Test
+    fun keepsLockoutAcrossRestart() {
+        repeat(3) { limiter().recordFailure() }
+        advance(30L)
+
+        assertEquals(70L, limiter().remainingLockoutMillis())
+    }
+
+    @Test
+    fun keepsFailuresAcrossRestart() {
+        val first = limiter()
+        first.recordFailure()
+        first.recordFailure()
+
+        assertEquals(100L, limiter().recordFailure())
+    }
+
+    @Test
+    fun wallClockChangeDoesNotEndLockout() {
+        repeat(3) { limiter().recordFailure() }
+        advance(30L)
+        wallTime += TimeUnit.DAYS.toMillis(1)
+
+        // The 30 ms since the state was saved no longer count.
+        assertEquals(100L, limiter().remainingLockoutMillis())
+    }
+
+    @Test
+    fun wallClockSetBackDoesNotEndLockout() {
+        repeat(3) { limiter().recordFailure() }
+        advance(30L)
+        wallTime -= TimeUnit.DAYS.toMillis(1)
+
+        assertEquals(100L, limiter().remainingLockoutMillis())
+    }
+
+    @Test
+    fun rebootResumesLockout() {
+        repeat(3) { limiter().recordFailure() }
+        now = 5L
+        wallTime += TimeUnit.HOURS.toMillis(1)
+
+        assertEquals(100L, limiter().remainingLockoutMillis())
+    }
+
+    @Test
+    fun rebootKeepsRecentFailures() {
+        val first = limiter()
+        first.recordFailure()
+        advance(500L)
+        first.recordFailure()
+        now = 5L
+        wallTime += TimeUnit.HOURS.toMillis(1)
+
+        // Failures from before the reboot now have negative times, but still count.
+        assertEquals(100L, limiter().recordFailure())
+    }
+
+    @Test
+    fun ignoresUnreadableState() {
+        file.writeBytes(byteArrayOf(1, 2, 3))
+
+        assertEquals(0L, limiter().remainingLockoutMillis())
+    }
+
+    @Test
+    fun answersWithoutWaitingForSavedState() {
+        repeat(3) { limiter().recordFailure() }
+
+        val limiter = limiter(ioExecutor = queuedExecutor)
+        assertFalse(limiter.isLoaded)
+        assertEquals(0L, limiter.remainingLockoutMillis())
+
+        runIoTasks()
+        assertTrue(limiter.isLoaded)
+        assertEquals(100L, limiter.remainingLockoutMillis())
+    }
+
+    @Test
+    fun mergesFailuresRecordedBeforeLoad() {
+        limiter().recordFailure()
+        limiter().recordFailure()
+
+        val limiter = limiter(ioExecutor = queuedExecutor)
+        assertEquals(0L, limiter.recordFailure())
+
+        runIoTasks()
+        assertEquals(100L, limiter.remainingLockoutMillis())
+        assertEquals(100L, limiter().remainingLockoutMillis())
+    }
+
+    @Test
+    fun mergesOnlyFailuresWithinWindow() {
+        limiter().recordFailure()
+        limiter().recordFailure()
+        advance(1000L)
+
+        val limiter = limiter(ioExecutor = queuedExecutor)
+        limiter.recordFailure()
+        runIoTasks()
+
+        assertEquals(0L, limiter.remainingLockoutMillis())
+        assertEquals(0L, limiter.recordFailure())
+        assertEquals(100L, limiter.recordFailure())
+    }
+
+    @Test
+    fun successBeforeLoadDiscardsSavedState() {
+        repeat(3) { limiter().recordFailure() }
+
+        val limiter = limiter(ioExecutor = queuedExecutor)
+        limiter.recordSuccess()
+        runIoTasks()
+
+        assertEquals(0L, limiter.remainingLockoutMillis())
+        assertEquals(0L, limiter().remainingLockoutMillis())
+    }
+
+    @Test
+    fun createLooksUpDirectoryOnlyOnIoExecutor() {
+        val lookups = ArrayList<String>()
+        val context = object : ContextWrapper(null) {
+            override fun getNoBackupFilesDir(): File {
+                lookups += Thread.currentThread().name
+                return directory
+            }
+        }
+
+        AttemptLimiter.create(context, queuedExecutor)
+        assertTrue(lookups.isEmpty())
+
+        val ioThread = Thread({ runIoTasks() }, "io")
+        ioThread.start()
+        ioThread.join()
+        assertEquals(listOf("io"), lookups)
+    }
+
+    private fun runIoTasks() {
+        while (true) {
+            val task = synchronized(ioTasks) {
+                if (ioTasks.isEmpty()) null else ioTasks.removeAt(0)
+            } ?: return
+            task.run()
+        }
+    }
+}
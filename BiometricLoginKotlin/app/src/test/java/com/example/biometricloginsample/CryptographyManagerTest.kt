@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.biometricloginsample
+
+import java.security.InvalidKeyException
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+
+class CryptographyManagerTest {
+
+    // Every clock read advances 10 ms, so each measured interval includes one extra tick.
+    private val clock = FakeClock(tickMillis = 10L)
+    private val keyStoreProvider = FakeKeyStoreProvider(clock)
+    private val warnings = ArrayList<String>()
+
+    private fun cryptographyManager(policy: KeyProvisioningPolicy = KeyProvisioningPolicy()) =
+        CryptographyManager(policy, keyStoreProvider, clock) { warnings += it }
+
+    @Test
+    fun generatesKeyInStrongBox() {
+        keyStoreProvider.strongBoxGenerationMillis = 100L
+        val manager = cryptographyManager()
+
+        manager.getInitializedCipherForEncryption(KEY_NAME)
+
+        val record = manager.getKeyProvisioningRecord(KEY_NAME)!!
+        assertEquals(KeyBackend.STRONGBOX, record.backend)
+        assertEquals(110L, record.generationMillis)
+        assertEquals(10L, record.lastCipherInitMillis)
+        assertTrue(keyStoreProvider.requests.single().strongBoxBacked)
+        assertTrue(warnings.isEmpty())
+    }
+
+    @Test
+    fun fallsBackToTeeWithoutStrongBox() {
+        keyStoreProvider.hasStrongBox = false
+        keyStoreProvider.teeGenerationMillis = 40L
+        val manager = cryptographyManager()
+
+        manager.getInitializedCipherForEncryption(KEY_NAME)
+
+        val record = manager.getKeyProvisioningRecord(KEY_NAME)!!
+        assertEquals(KeyBackend.TEE, record.backend)
+        assertEquals(50L, record.generationMillis)
+        assertEquals(listOf(true, false), keyStoreProvider.requests.map { it.strongBoxBacked })
+        assertTrue(keyStoreProvider.deletedKeys.isEmpty())
+    }
+
+    @Test
+    fun fallsBackToTeeWhenStrongBoxIsTooSlow() {
+        keyStoreProvider.strongBoxGenerationMillis = 600L
+        keyStoreProvider.teeGenerationMillis = 40L
+        val manager = cryptographyManager(KeyProvisioningPolicy(maxStrongBoxLatencyMillis = 500L))
+
+        manager.getInitializedCipherForEncryption(KEY_NAME)
+
+        val record = manager.getKeyProvisioningRecord(KEY_NAME)!!
+        assertEquals(KeyBackend.TEE, record.backend)
+        assertEquals(50L, record.generationMillis)
+        assertEquals(listOf(KEY_NAME), keyStoreProvider.deletedKeys)
+        assertEquals(1, warnings.size)
+    }
+
+    @Test
+    fun skipsStrongBoxWhenNotPreferred() {
+        val manager = cryptographyManager(KeyProvisioningPolicy(preferStrongBox = false))
+
+        manager.getInitializedCipherForEncryption(KEY_NAME)
+
+        assertEquals(KeyBackend.TEE, manager.getKeyProvisioningRecord(KEY_NAME)!!.backend)
+        assertFalse(keyStoreProvider.requests.single().strongBoxBacked)
+    }
+
+    @Test
+    fun recordsExistingKeyWithoutGenerationTime() {
+        cryptographyManager().getInitializedCipherForEncryption(KEY_NAME)
+        val manager = cryptographyManager()
+
+        val cipher = manager.getInitializedCipherForEncryption(KEY_NAME)
+        manager.getInitializedCipherForDecryption(KEY_NAME, cipher.iv)
+
+        val record = manager.getKeyProvisioningRecord(KEY_NAME)!!
+        assertEquals(KeyBackend.STRONGBOX, record.backend)
+        assertNull(record.generationMillis)
+        assertEquals(10L, record.lastCipherInitMillis)
+        assertEquals(1, keyStoreProvider.requests.size)
+    }
+
+    @Test
+    fun deletingKeyForgetsRecord() {
+        val manager = cryptographyManager()
+        manager.getInitializedCipherForEncryption(KEY_NAME)
+
+        manager.deleteSecretKey(KEY_NAME)
+
+        assertFalse(manager.hasSecretKey(KEY_NAME))
+        assertNull(manager.getKeyProvisioningRecord(KEY_NAME))
+    }
+
+    @Test
+    fun encryptsAndDecrypts() {
+        val manager = cryptographyManager()
+        val encryptionCipher = manager.getInitializedCipherForEncryption(KEY_NAME)
+        val wrapper = manager.encryptData("token", encryptionCipher)
+        val iv = wrapper.initializationVector
+        val cipher = manager.getInitializedCipherForDecryption(KEY_NAME, iv)
+        assertEquals("token", manager.decryptData(wrapper.ciphertext, cipher))
+    }
+
+    @Test
+    fun timeBoundStrongBoxKeyIsKeptBeforeAuthentication() {
+        keyStoreProvider.strongBoxGenerationMillis = 100L
+        keyStoreProvider.isUserAuthenticated = false
+        val manager = cryptographyManager(TIME_BOUND_POLICY)
+
+        try {
+            manager.getInitializedCipherForEncryption(KEY_NAME)
+            fail("Cipher.init should need an authenticated user")
+        } catch (expected: InvalidKeyException) {
+        }
+
+        // The key was recorded without a Cipher.init probe, which would have failed the same way.
+        val record = manager.getKeyProvisioningRecord(KEY_NAME)!!
+        assertEquals(KeyBackend.STRONGBOX, record.backend)
+        assertEquals(110L, record.generationMillis)
+        assertNull(record.lastCipherInitMillis)
+        assertTrue(keyStoreProvider.deletedKeys.isEmpty())
+    }
+
+    private companion object {
+        const val KEY_NAME = "test_key"
+        val TIME_BOUND_POLICY = KeyProvisioningPolicy(userAuthenticationValiditySeconds = 30)
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.biometricloginsample
+
+import javax.crypto.SecretKey
+import javax.crypto.spec.SecretKeySpec
+
+/**
+ * Monotonic test clock. Every read advances it by [tickMillis], so that an interval measured
+ * around an operation that takes no fake time still comes out as exactly one tick.
+ */
+class FakeClock(private val tickMillis: Long = 0L) : () -> Long {
+
+    var now = 0L
+
+    override fun invoke(): Long {
+        val time = now
+        now += tickMillis
+        return time
+    }
+}
+
+/**
+ * In-memory [KeyStoreProvider] that hands out software AES keys. Generating a key advances
+ * [clock] by [strongBoxGenerationMillis] or [teeGenerationMillis], to stand in for how long the
+ * keystore would take.
+ *
+ * Like the Android keystore before the user has authenticated, keys requested with a
+ * [SecretKeyRequest.userAuthenticationValiditySeconds] window cannot initialize a Cipher while
+ * [isUserAuthenticated] is false.
+ */
+class FakeKeyStoreProvider(
+    private val clock: FakeClock,
+    var hasStrongBox: Boolean = true,
+    var strongBoxGenerationMillis: Long = 0L,
+    var teeGenerationMillis: Long = 0L,
+    var isUserAuthenticated: Boolean = true
+) : KeyStoreProvider {
+
+    private val keys = HashMap<String, SecretKey>()
+    private val backends = HashMap<SecretKey, KeyBackend>()
+
+    val requests = ArrayList<SecretKeyRequest>()
+    val deletedKeys = ArrayList<String>()
+
+    override fun getSecretKey(keyName: String): SecretKey? = keys[keyName]
+
+    override fun containsKey(keyName: String): Boolean = keys.containsKey(keyName)
+
+    override fun deleteKey(keyName: String) {
+        keys.remove(keyName)?.let { backends.remove(it) }
+        deletedKeys += keyName
+    }
+
+    override fun generateSecretKey(request: SecretKeyRequest): SecretKey? {
+        requests += request
+        if (request.strongBoxBacked && !hasStrongBox) return null
+        clock.now += if (request.strongBoxBacked) strongBoxGenerationMillis else teeGenerationMillis
+        val keyBytes = ByteArray(request.keySize / 8) { it.toByte() }
+        val key = if (request.userAuthenticationValiditySeconds > 0) {
+            TimeBoundKey(keyBytes)
+        } else {
+            SecretKeySpec(keyBytes, "AES")
+        }
+        keys[request.keyName] = key
+        backends[key] = if (request.strongBoxBacked) KeyBackend.STRONGBOX else KeyBackend.TEE
+        return key
+    }
+
+    override fun getBackend(secretKey: SecretKey): KeyBackend =
+        backends[secretKey] ?: KeyBackend.SOFTWARE
+
+    // Without an encoding, Cipher.init fails with an InvalidKeyException, which is what the
+    // keystore's UserNotAuthenticatedException extends.
+    private inner class TimeBoundKey(private val keyBytes: ByteArray) : SecretKey {
+        override fun getAlgorithm() = "AES"
+        override fun getFormat() = "RAW"
+        override fun getEncoded(): ByteArray? = if (isUserAuthenticated) keyBytes.clone() else null
+    }
+}
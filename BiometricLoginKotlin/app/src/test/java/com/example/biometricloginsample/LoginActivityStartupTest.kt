@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.biometricloginsample
+
+import android.os.Looper
+import android.os.StrictMode
+import android.os.SystemClock
+import android.view.View
+import androidx.lifecycle.Lifecycle
+import java.util.concurrent.TimeUnit
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.Robolectric
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.Shadows.shadowOf
+import org.robolectric.annotation.Config
+
+/**
+ * Times the start of [LoginActivity] on the JVM, up to the point where it knows which login flow
+ * to offer, with a StrictMode policy that kills the test on main-thread disk access.
+ *
+ * Robolectric runs the framework's own StrictMode checks, such as the one SharedPreferences makes
+ * when a read has to wait for the file, but not those of plain java.io, so the time the main
+ * thread spends in onCreate and onResume is also held to a budget.
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [28])
+class LoginActivityStartupTest {
+
+    private lateinit var savedPolicy: StrictMode.ThreadPolicy
+
+    @Before
+    fun setUp() {
+        savedPolicy = StrictMode.getThreadPolicy()
+        StrictMode.setThreadPolicy(
+            StrictMode.ThreadPolicy.Builder()
+                .detectDiskReads()
+                .detectDiskWrites()
+                .detectCustomSlowCalls()
+                .penaltyDeath()
+                .build()
+        )
+        // The first activity of a test process also pays for loading Robolectric's resources.
+        launch().pause().stop().destroy()
+    }
+
+    @After
+    fun tearDown() {
+        StrictMode.setThreadPolicy(savedPolicy)
+    }
+
+    @Test
+    fun startsWithinBudgetWithoutDiskAccessOnMainThread() {
+        val start = SystemClock.elapsedRealtimeNanos()
+        val controller = Robolectric.buildActivity(LoginActivity::class.java).setup()
+        val mainThreadMillis = elapsedMillisSince(start)
+        // Let the stored ciphertext load and its result reach the main thread.
+        AppExecutors.diskIO.submit {}.get(DISK_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+        shadowOf(Looper.getMainLooper()).idle()
+        val loadedMillis = elapsedMillisSince(start)
+
+        val activity = controller.get()
+        assertEquals(Lifecycle.State.RESUMED, activity.lifecycle.currentState)
+        // Nothing is stored yet, so the password login must be offered.
+        assertTrue(activity.findViewById<View>(R.id.login).hasOnClickListeners())
+        assertTrue(
+            "onCreate to onResume took $mainThreadMillis ms on the main thread",
+            mainThreadMillis <= MAIN_THREAD_BUDGET_MS
+        )
+        assertTrue(
+            "Startup took $loadedMillis ms until the login flow was known",
+            loadedMillis <= STARTUP_BUDGET_MS
+        )
+        controller.pause().stop().destroy()
+    }
+
+    private fun launch() = Robolectric.buildActivity(LoginActivity::class.java).setup().also {
+        AppExecutors.diskIO.submit {}.get(DISK_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+        shadowOf(Looper.getMainLooper()).idle()
+    }
+
+    private fun elapsedMillisSince(startNanos: Long) =
+        TimeUnit.NANOSECONDS.toMillis(SystemClock.elapsedRealtimeNanos() - startNanos)
+
+    private companion object {
+        const val MAIN_THREAD_BUDGET_MS = 250L
+        const val STARTUP_BUDGET_MS = 500L
+        const val DISK_TIMEOUT_MS = 5_000L
+    }
+}
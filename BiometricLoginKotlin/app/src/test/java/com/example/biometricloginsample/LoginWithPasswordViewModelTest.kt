@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.biometricloginsample
+
+import android.os.Looper
+import androidx.lifecycle.Observer
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.Shadows.shadowOf
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [28])
+class LoginWithPasswordViewModelTest {
+
+    private val server = FakeAuthServer(acceptedPassword = PASSWORD)
+    private var now = 1_000_000L
+    private val attemptLimiter = AttemptLimiter(
+        fileProvider = null,
+        maxFailures = 3,
+        windowMillis = 60_000L,
+        baseLockoutMillis = 30_000L,
+        clock = { now }
+    )
+    private val viewModel = LoginWithPasswordViewModel(server, attemptLimiter)
+    private val results = ArrayList<LoginResult>()
+    private val observer = Observer<LoginResult> { results += it }
+
+    @Before
+    fun setUp() {
+        viewModel.loginResult.observeForever(observer)
+    }
+
+    @After
+    fun tearDown() {
+        viewModel.loginResult.removeObserver(observer)
+        UserSession.invalidate()
+    }
+
+    /** Logs in and waits for the request to come back to the main thread. */
+    private fun login(password: String): LoginResult {
+        val count = results.size
+        viewModel.login(USERNAME, password)
+        val deadline = System.currentTimeMillis() + 5_000L
+        while (results.size == count && System.currentTimeMillis() < deadline) {
+            shadowOf(Looper.getMainLooper()).idle()
+            Thread.sleep(1)
+        }
+        assertEquals("No login result", count + 1, results.size)
+        return results.last()
+    }
+
+    @Test
+    fun acceptsCorrectPassword() {
+        val result = login(PASSWORD)
+
+        assertTrue(result.success)
+        assertTrue(UserSession.isAuthenticated)
+        assertEquals(USERNAME, UserSession.username)
+    }
+
+    @Test
+    fun rejectsWrongPassword() {
+        val result = login("wrong-password")
+
+        assertFalse(result.success)
+        assertEquals(R.string.login_failed, result.error)
+        assertFalse(UserSession.isAuthenticated)
+    }
+
+    @Test
+    fun locksOutAfterRepeatedWrongPasswords() {
+        assertEquals(R.string.login_failed, login("wrong-password").error)
+        assertEquals(R.string.login_failed, login("wrong-password").error)
+        assertEquals(R.string.too_many_attempts, login("wrong-password").error)
+        assertTrue(attemptLimiter.remainingLockoutMillis() > 0)
+    }
+
+    @Test
+    fun refusesCorrectPasswordDuringLockoutWithoutAskingServer() {
+        repeat(3) { login("wrong-password") }
+        val requests = server.requestCount
+
+        val result = login(PASSWORD)
+
+        assertFalse(result.success)
+        assertEquals(R.string.too_many_attempts, result.error)
+        assertEquals(requests, server.requestCount)
+        assertFalse(UserSession.isAuthenticated)
+    }
+
+    @Test
+    fun acceptsCorrectPasswordOnceLockoutEnds() {
+        repeat(3) { login("wrong-password") }
+        now += attemptLimiter.remainingLockoutMillis()
+
+        assertTrue(login(PASSWORD).success)
+    }
+
+    @Test
+    fun successForgetsEarlierFailures() {
+        login("wrong-password")
+        login("wrong-password")
+        assertTrue(login(PASSWORD).success)
+
+        assertEquals(R.string.login_failed, login("wrong-password").error)
+        assertEquals(R.string.login_failed, login("wrong-password").error)
+        assertEquals(0L, attemptLimiter.remainingLockoutMillis())
+    }
+
+    private companion object {
+        const val USERNAME = "user@example.com"
+        const val PASSWORD = "correct-password"
+    }
+}
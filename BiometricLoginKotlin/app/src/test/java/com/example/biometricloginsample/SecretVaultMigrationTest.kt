@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.biometricloginsample
+
+import android.content.Context
+import java.io.File
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertFalse
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [28])
+class SecretVaultMigrationTest {
+
+    private lateinit var context: Context
+    private lateinit var vault: SecretVault
+
+    private val prefs
+        get() = context.getSharedPreferences(SHARED_PREFS_FILENAME, Context.MODE_PRIVATE)
+
+    @Before
+    fun setUp() {
+        context = RuntimeEnvironment.application
+        vault = SecretVault(File(context.filesDir, "vault"))
+    }
+
+    @Test
+    fun movesStoredTokenIntoVault() {
+        prefs.edit().putString(CIPHERTEXT_WRAPPER, CiphertextWrapperJson.toJson(wrapper(1)))
+            .commit()
+
+        SecretVault.migrateFromSharedPrefs(context, vault)
+
+        assertWrapperEquals(wrapper(1), vault.getCiphertextWrapper(CIPHERTEXT_WRAPPER))
+        assertFalse(prefs.contains(CIPHERTEXT_WRAPPER))
+    }
+
+    @Test
+    fun keepsNewerRecordInVault() {
+        vault.put(CIPHERTEXT_WRAPPER, wrapper(2))
+        prefs.edit().putString(CIPHERTEXT_WRAPPER, CiphertextWrapperJson.toJson(wrapper(1)))
+            .commit()
+
+        SecretVault.migrateFromSharedPrefs(context, vault)
+
+        assertWrapperEquals(wrapper(2), vault.getCiphertextWrapper(CIPHERTEXT_WRAPPER))
+        assertFalse(prefs.contains(CIPHERTEXT_WRAPPER))
+    }
+
+    @Test
+    fun nothingToMigrateLeavesVaultEmpty() {
+        SecretVault.migrateFromSharedPrefs(context, vault)
+
+        assertFalse(CIPHERTEXT_WRAPPER in vault)
+    }
+
+    private fun wrapper(seed: Int) =
+        CiphertextWrapper(ByteArray(24) { (seed + it).toByte() }, ByteArray(12) { seed.toByte() })
+
+    private fun assertWrapperEquals(expected: CiphertextWrapper, actual: CiphertextWrapper?) {
+        assertArrayEquals(expected.ciphertext, actual!!.ciphertext)
+        assertArrayEquals(expected.initializationVector, actual.initializationVector)
+    }
+}
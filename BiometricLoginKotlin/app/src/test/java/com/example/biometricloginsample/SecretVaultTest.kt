@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.biometricloginsample
+
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+class SecretVaultTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val file: File by lazy { File(folder.root, "vault") }
+
+    @Test
+    fun recordsSurviveReopening() {
+        SecretVault(file).apply {
+            put("a", wrapper(1))
+            put("b", wrapper(2))
+            remove("a")
+        }
+        val vault = SecretVault(file)
+        assertEquals(setOf("b"), vault.keys)
+        assertWrapperEquals(wrapper(2), vault.getCiphertextWrapper("b"))
+    }
+
+    @Test
+    fun tornRecordIsDropped() {
+        SecretVault(file).apply {
+            put("a", wrapper(1))
+            put("b", wrapper(2))
+        }
+        RandomAccessFile(file, "rw").use { it.setLength(it.length() - 3) }
+
+        val vault = SecretVault(file)
+        assertEquals(setOf("a"), vault.keys)
+        // The next record is appended where the torn one started.
+        vault.put("c", wrapper(3))
+        assertEquals(setOf("a", "c"), SecretVault(file).keys)
+    }
+
+    @Test
+    fun tornRecordAfterNonAsciiKeysIsDropped() {
+        SecretVault(file).apply {
+            put("caf\u00e9", wrapper(1))
+            put("\u0000\u20ac", wrapper(2))
+            remove("caf\u00e9")
+            put("b", wrapper(3))
+        }
+        RandomAccessFile(file, "rw").use { it.setLength(it.length() - 3) }
+
+        val vault = SecretVault(file)
+        assertEquals(setOf("\u0000\u20ac"), vault.keys)
+        vault.put("c", wrapper(4))
+        val reopened = SecretVault(file)
+        assertEquals(setOf("\u0000\u20ac", "c"), reopened.keys)
+        assertWrapperEquals(wrapper(4), reopened.getCiphertextWrapper("c"))
+    }
+
+    @Test
+    fun putIfAbsentKeepsExistingRecord() {
+        val vault = SecretVault(file)
+        assertTrue(vault.putIfAbsent("a", wrapper(1)))
+        assertFalse(vault.putIfAbsent("a", wrapper(2)))
+        assertWrapperEquals(wrapper(1), SecretVault(file).getCiphertextWrapper("a"))
+    }
+
+    @Test
+    fun compactionKeepsLiveRecords() {
+        val vault = SecretVault(file)
+        repeat(200) { vault.put("key${it % 5}", wrapper(it)) }
+        val reopened = SecretVault(file)
+        assertEquals(5, reopened.size)
+        assertWrapperEquals(wrapper(199), reopened.getCiphertextWrapper("key4"))
+        // No backup is left behind once compaction has finished.
+        assertEquals(listOf("vault"), folder.root.list()!!.toList())
+    }
+
+    @Test
+    fun backupOfInterruptedCompactionIsRestored() {
+        SecretVault(file).put("a", wrapper(1))
+        // A crash during compaction leaves the previous log as a backup next to a partial file.
+        file.renameTo(File(file.path + ".bak"))
+        file.writeBytes(byteArrayOf(1, 2))
+
+        val vault = SecretVault(file)
+        assertWrapperEquals(wrapper(1), vault.getCiphertextWrapper("a"))
+        vault.put("b", wrapper(2))
+        assertEquals(setOf("a", "b"), SecretVault(file).keys)
+    }
+
+    @Test
+    fun failedLoadLeavesNothingBehind() {
+        file.writeBytes(byteArrayOf(0, 0, 0, 0, 1))
+        val vault = SecretVault(file)
+        repeat(2) {
+            try {
+                vault.size
+                fail("Expected an IOException")
+            } catch (expected: IOException) {
+            }
+        }
+        assertFalse(file.length() == 0L)
+    }
+
+    @Test
+    fun missingFileIsEmptyVault() {
+        val vault = SecretVault(file)
+        assertEquals(0, vault.size)
+        assertNull(vault.getCiphertextWrapper("a"))
+        assertFalse(file.exists())
+    }
+
+    private fun wrapper(seed: Int) =
+        CiphertextWrapper(ByteArray(24) { (seed + it).toByte() }, ByteArray(12) { seed.toByte() })
+
+    private fun assertWrapperEquals(expected: CiphertextWrapper, actual: CiphertextWrapper?) {
+        assertArrayEquals(expected.ciphertext, actual!!.ciphertext)
+        assertArrayEquals(expected.initializationVector, actual.initializationVector)
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.biometricloginsample
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [28])
+class SessionTokenCacheTest {
+
+    private var now = 1_000_000L
+    private val cache = SessionTokenCache(ttlMillis = TTL_MS, clock = { now })
+
+    @Test
+    fun lendsTheTokenItWasGiven() {
+        val token = tokenBytes()
+        cache.put(token, USERNAME)
+
+        assertTrue(cache.isAuthenticated)
+        assertEquals(USERNAME, cache.username)
+        cache.withToken { lent ->
+            assertSame(token, lent)
+            assertArrayEquals(tokenBytes(), lent)
+        }
+    }
+
+    @Test
+    fun wipesTheTokenOnInvalidate() {
+        val token = tokenBytes()
+        cache.put(token)
+
+        cache.invalidate()
+
+        assertFalse(cache.isAuthenticated)
+        assertNull(cache.withToken { it })
+        assertTrue(token.all { it == 0.toByte() })
+    }
+
+    @Test
+    fun wipesThePreviousTokenOnPut() {
+        val first = tokenBytes()
+        cache.put(first)
+
+        cache.put(tokenBytes())
+
+        assertTrue(first.all { it == 0.toByte() })
+        assertTrue(cache.isAuthenticated)
+    }
+
+    @Test
+    fun wipesTheTokenOnceExpired() {
+        val token = tokenBytes()
+        cache.put(token, USERNAME)
+
+        now += TTL_MS
+
+        assertFalse(cache.isAuthenticated)
+        assertNull(cache.username)
+        assertNull(cache.withToken { it })
+        assertTrue(token.all { it == 0.toByte() })
+    }
+
+    private fun tokenBytes() = byteArrayOf(0x74, 0x6f, 0x6b, 0x65, 0x6e)
+
+    private companion object {
+        const val TTL_MS = 60_000L
+        const val USERNAME = "user"
+    }
+}
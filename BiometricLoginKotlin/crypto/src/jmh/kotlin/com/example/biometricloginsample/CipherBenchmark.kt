@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.biometricloginsample
+
+import java.nio.ByteBuffer
+import java.nio.CharBuffer
+import java.util.concurrent.TimeUnit
+import javax.crypto.Cipher
+import javax.crypto.spec.GCMParameterSpec
+import javax.crypto.spec.SecretKeySpec
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+
+/**
+ * Encrypts and decrypts payloads of [payloadSize] characters with a software AES-GCM key, the same
+ * transformation CryptographyManager uses with keystore keys.
+ *
+ * The "warm" benchmarks reuse one Cipher and only initialize it per operation, as
+ * CryptographyManager does with the Cipher a BiometricPrompt authorized. The "cold" ones also pay
+ * for Cipher.getInstance. Run with the gc profiler to compare allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+open class CipherBenchmark {
+
+    @Param("32", "1024", "16384")
+    var payloadSize = 0
+
+    private val key = SecretKeySpec(ByteArray(KEY_SIZE_BYTES) { it.toByte() }, "AES")
+
+    private lateinit var cipher: Cipher
+    private lateinit var plaintext: String
+    private lateinit var ciphertextWrapper: CiphertextWrapper
+    private lateinit var plaintextChars: CharBuffer
+    private lateinit var ciphertextBytes: ByteBuffer
+    private lateinit var encryptOutput: ByteBuffer
+    private lateinit var decryptOutput: CharBuffer
+
+    @Setup
+    fun setUp() {
+        cipher = Cipher.getInstance(TRANSFORMATION)
+        plaintext = "x".repeat(payloadSize)
+        cipher.init(Cipher.ENCRYPT_MODE, key)
+        ciphertextWrapper = cipher.encryptString(plaintext)
+        plaintextChars = CharBuffer.wrap(plaintext.toCharArray())
+        ciphertextBytes = ByteBuffer.wrap(ciphertextWrapper.ciphertext)
+        encryptOutput = ByteBuffer.allocateDirect(ciphertextWrapper.ciphertext.size)
+        decryptOutput = CharBuffer.allocate(payloadSize)
+    }
+
+    @Benchmark
+    fun encryptStringWarmCipher(): CiphertextWrapper {
+        cipher.init(Cipher.ENCRYPT_MODE, key)
+        return cipher.encryptString(plaintext)
+    }
+
+    @Benchmark
+    fun encryptStringColdCipher(): CiphertextWrapper {
+        val coldCipher = Cipher.getInstance(TRANSFORMATION)
+        coldCipher.init(Cipher.ENCRYPT_MODE, key)
+        return coldCipher.encryptString(plaintext)
+    }
+
+    @Benchmark
+    fun decryptStringWarmCipher(): String {
+        cipher.init(Cipher.DECRYPT_MODE, key, gcmSpec())
+        return cipher.decryptString(ciphertextWrapper.ciphertext)
+    }
+
+    @Benchmark
+    fun decryptStringColdCipher(): String {
+        val coldCipher = Cipher.getInstance(TRANSFORMATION)
+        coldCipher.init(Cipher.DECRYPT_MODE, key, gcmSpec())
+        return coldCipher.decryptString(ciphertextWrapper.ciphertext)
+    }
+
+    @Benchmark
+    fun encryptCharsIntoBuffer(): Int {
+        plaintextChars.rewind()
+        encryptOutput.clear()
+        cipher.init(Cipher.ENCRYPT_MODE, key)
+        return cipher.encryptChars(plaintextChars, encryptOutput)
+    }
+
+    @Benchmark
+    fun decryptBufferIntoChars(): Int {
+        ciphertextBytes.rewind()
+        decryptOutput.clear()
+        cipher.init(Cipher.DECRYPT_MODE, key, gcmSpec())
+        return cipher.decryptChars(ciphertextBytes, decryptOutput)
+    }
+
+    private fun gcmSpec() = GCMParameterSpec(GCM_TAG_BITS, ciphertextWrapper.initializationVector)
+
+    private companion object {
+        const val TRANSFORMATION = "AES/GCM/NoPadding"
+        const val KEY_SIZE_BYTES = 32
+        const val GCM_TAG_BITS = 128
+    }
+}
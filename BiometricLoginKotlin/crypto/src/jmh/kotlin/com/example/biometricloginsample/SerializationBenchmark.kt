@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.biometricloginsample
+
+import com.google.gson.Gson
+import java.util.concurrent.TimeUnit
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+
+/**
+ * The persistence path of CryptographyManager: a [CiphertextWrapper] is turned into JSON and
+ * stored in SharedPreferences, then read back and parsed. A HashMap stands in for
+ * SharedPreferences, so this measures the serialization rather than the disk.
+ *
+ * [roundTripWithNewGson] is the baseline of creating a Gson per call, which
+ * [CiphertextWrapperJson] avoids.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+open class SerializationBenchmark {
+
+    @Param("32", "1024")
+    var ciphertextSize = 0
+
+    private val preferences = HashMap<String, String>()
+    private lateinit var ciphertextWrapper: CiphertextWrapper
+    private lateinit var json: String
+
+    @Setup
+    fun setUp() {
+        ciphertextWrapper = CiphertextWrapper(
+            ByteArray(ciphertextSize) { it.toByte() },
+            ByteArray(IV_SIZE) { it.toByte() }
+        )
+        json = CiphertextWrapperJson.toJson(ciphertextWrapper)
+    }
+
+    @Benchmark
+    fun toJson(): String = CiphertextWrapperJson.toJson(ciphertextWrapper)
+
+    @Benchmark
+    fun fromJson(): CiphertextWrapper? = CiphertextWrapperJson.fromJson(json)
+
+    @Benchmark
+    fun persistAndLoad(): CiphertextWrapper? {
+        preferences[PREF_KEY] = CiphertextWrapperJson.toJson(ciphertextWrapper)
+        return CiphertextWrapperJson.fromJson(preferences[PREF_KEY])
+    }
+
+    @Benchmark
+    fun roundTripWithNewGson(): CiphertextWrapper? {
+        val stored = Gson().toJson(ciphertextWrapper)
+        return Gson().fromJson(stored, CiphertextWrapper::class.java)
+    }
+
+    private companion object {
+        const val PREF_KEY = "ciphertext_wrapper"
+        const val IV_SIZE = 12
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.biometricloginsample
+
+import java.nio.Buffer
+import java.nio.ByteBuffer
+import java.nio.CharBuffer
+import java.util.Arrays
+
+// Since JDK 9, ByteBuffer and CharBuffer override clear(), flip() and friends with covariant return
+// types that older Android versions lack. This module is compiled against the JDK rather than
+// android.jar, so those calls go through Buffer to stay linkable on every API level.
+internal fun Buffer.clearBuffer() {
+    clear()
+}
+
+internal fun Buffer.flipBuffer() {
+    flip()
+}
+
+/**
+ * Overwrites the whole buffer with zeros, regardless of its position and limit.
+ */
+fun ByteBuffer.wipe() {
+    clearBuffer()
+    if (hasArray()) {
+        Arrays.fill(array(), arrayOffset(), arrayOffset() + capacity(), 0.toByte())
+    } else {
+        while (hasRemaining()) put(0.toByte())
+    }
+    clearBuffer()
+}
+
+/**
+ * Overwrites the whole buffer with zeros, regardless of its position and limit.
+ */
+fun CharBuffer.wipe() {
+    clearBuffer()
+    if (hasArray()) {
+        Arrays.fill(array(), arrayOffset(), arrayOffset() + capacity(), 0.toChar())
+    } else {
+        while (hasRemaining()) put(0.toChar())
+    }
+    clearBuffer()
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.biometricloginsample
+
+import java.nio.ByteBuffer
+import java.nio.CharBuffer
+import java.util.Arrays
+import javax.crypto.Cipher
+import kotlin.math.ceil
+
+/*
+ * The encrypt and decrypt steps behind CryptographyManager, once the Cipher has been initialized.
+ * They only use javax.crypto, so they run the same with a keystore key on a device and with a
+ * software key on the JVM.
+ */
+
+fun Cipher.encryptString(plaintext: String): CiphertextWrapper {
+    val ciphertext = doFinal(plaintext.toByteArray(Charsets.UTF_8))
+    return CiphertextWrapper(ciphertext, iv)
+}
+
+fun Cipher.decryptString(ciphertext: ByteArray): String {
+    val plaintext = doFinal(ciphertext)
+    return String(plaintext, Charsets.UTF_8)
+}
+
+/**
+ * Encrypts the remaining characters of [plaintext] as UTF-8 into [output].
+ *
+ * The characters are encoded into a scratch buffer sized for the worst case up front, so the
+ * encoder never grows it behind our back, and the scratch buffer is wiped before returning.
+ *
+ * @return the number of bytes written to [output]
+ */
+fun Cipher.encryptChars(plaintext: CharBuffer, output: ByteBuffer): Int {
+    val encoder = Charsets.UTF_8.newEncoder()
+    val maxEncodedSize = ceil(plaintext.remaining() * encoder.maxBytesPerChar()).toInt()
+    return withPlaintextScratch(maxEncodedSize) { encoded ->
+        encoder.encode(plaintext, encoded, true).let {
+            if (it.isError || it.isOverflow) it.throwException()
+        }
+        encoder.flush(encoded).let { if (it.isOverflow) it.throwException() }
+        encoded.flipBuffer()
+        doFinal(encoded, output)
+    }
+}
+
+/**
+ * Decrypts the remaining bytes of [ciphertext] into [output] as UTF-8 characters.
+ *
+ * @return the number of characters written to [output]
+ */
+fun Cipher.decryptChars(ciphertext: ByteBuffer, output: CharBuffer): Int =
+    withPlaintextScratch(getOutputSize(ciphertext.remaining())) { plaintext ->
+        doFinal(ciphertext, plaintext)
+        plaintext.flipBuffer()
+        val start = output.position()
+        val decoder = Charsets.UTF_8.newDecoder()
+        decoder.decode(plaintext, output, true).let {
+            if (it.isError || it.isOverflow) it.throwException()
+        }
+        decoder.flush(output).let { if (it.isOverflow) it.throwException() }
+        output.position() - start
+    }
+
+// Plaintext bytes only ever pass through this per-thread buffer, so that encrypting and decrypting
+// characters does not allocate on every call. It is kept as long as it stays small.
+private val plaintextScratch = ThreadLocal<ByteBuffer>()
+
+private const val MAX_RETAINED_SCRATCH_SIZE = 16 * 1024
+
+/**
+ * Runs [block] with an empty heap buffer of at least [size] bytes, and zeroes the first [size]
+ * bytes afterwards, which covers everything [block] can have written.
+ */
+private inline fun <T> withPlaintextScratch(size: Int, block: (ByteBuffer) -> T): T {
+    val cached = plaintextScratch.get()
+    val scratch = if (cached != null && cached.capacity() >= size) {
+        cached.also { plaintextScratch.set(null) }
+    } else {
+        ByteBuffer.allocate(size)
+    }
+    try {
+        return block(scratch)
+    } finally {
+        Arrays.fill(scratch.array(), 0, size, 0.toByte())
+        scratch.clearBuffer()
+        if (scratch.capacity() <= MAX_RETAINED_SCRATCH_SIZE) plaintextScratch.set(scratch)
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.biometricloginsample
+
+import com.google.gson.Gson
+
+data class CiphertextWrapper(val ciphertext: ByteArray, val initializationVector: ByteArray)
+
+/**
+ * Converts [CiphertextWrapper]s to and from the JSON that is persisted in SharedPreferences.
+ */
+object CiphertextWrapperJson {
+
+    // Gson builds its type adapters through reflection, so share one instance across calls.
+    private val gson = Gson()
+
+    fun toJson(ciphertextWrapper: CiphertextWrapper): String = gson.toJson(ciphertextWrapper)
+
+    /**
+     * @return the wrapper, or null if [json] is null
+     */
+    fun fromJson(json: String?): CiphertextWrapper? =
+        gson.fromJson(json, CiphertextWrapper::class.java)
+}
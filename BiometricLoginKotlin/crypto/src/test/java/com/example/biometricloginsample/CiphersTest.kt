@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.example.biometricloginsample
+
+import java.nio.ByteBuffer
+import java.nio.CharBuffer
+import java.nio.charset.CharacterCodingException
+import javax.crypto.AEADBadTagException
+import javax.crypto.Cipher
+import javax.crypto.spec.GCMParameterSpec
+import javax.crypto.spec.SecretKeySpec
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Test
+
+class CiphersTest {
+
+    private val key = SecretKeySpec(ByteArray(32) { it.toByte() }, "AES")
+
+    @Test
+    fun roundTripsAscii() {
+        assertEquals("secret token", roundTrip("secret token"))
+    }
+
+    @Test
+    fun roundTripsMultiByteCharacters() {
+        // Two, three and four byte UTF-8 sequences, the last one a surrogate pair.
+        val plaintext = "héllo wörld 密码 🔑"
+        assertEquals(plaintext, roundTrip(plaintext))
+    }
+
+    @Test
+    fun roundTripsEmptyInput() {
+        assertEquals("", roundTrip(""))
+    }
+
+    @Test
+    fun roundTripsAcrossScratchSizes() {
+        // Larger than the retained scratch buffer, then small again, then larger than before.
+        for (size in intArrayOf(40_000, 3, 1024, 17, 5000)) {
+            val plaintext = "é".repeat(size)
+            assertEquals(plaintext, roundTrip(plaintext))
+        }
+    }
+
+    @Test
+    fun encryptCharsMatchesEncryptString() {
+        val plaintext = "pässwörd"
+        val encryptCipher = encryptCipher()
+        val output = ByteBuffer.allocate(encryptCipher.getOutputSize(plaintext.length * 3))
+
+        val written = encryptCipher.encryptChars(CharBuffer.wrap(plaintext), output)
+
+        output.flipBuffer()
+        val ciphertext = ByteArray(written).also { output.get(it) }
+        assertEquals(plaintext, decryptCipher(encryptCipher.iv).decryptString(ciphertext))
+    }
+
+    @Test
+    fun consumesInputAndWritesAtOutputPosition() {
+        val plaintext = CharBuffer.wrap("abc")
+        val encryptCipher = encryptCipher()
+        val ciphertext = ByteBuffer.allocateDirect(encryptCipher.getOutputSize(9))
+
+        val written = encryptCipher.encryptChars(plaintext, ciphertext)
+        assertFalse(plaintext.hasRemaining())
+        assertEquals(written, ciphertext.position())
+
+        ciphertext.flipBuffer()
+        val output = CharBuffer.allocate(8)
+        output.put("xy")
+        val read = decryptCipher(encryptCipher.iv).decryptChars(ciphertext, output)
+        assertEquals(3, read)
+        assertFalse(ciphertext.hasRemaining())
+        output.flipBuffer()
+        assertEquals("xyabc", output.toString())
+    }
+
+    @Test(expected = CharacterCodingException::class)
+    fun rejectsUnpairedSurrogate() {
+        encryptCipher().encryptChars(CharBuffer.wrap("a\uD83Db"), ByteBuffer.allocate(64))
+    }
+
+    @Test(expected = AEADBadTagException::class)
+    fun rejectsTamperedCiphertext() {
+        val encryptCipher = encryptCipher()
+        val ciphertext = encryptCipher.encryptString("secret").ciphertext
+        ciphertext[0] = (ciphertext[0].toInt() xor 1).toByte()
+
+        decryptCipher(encryptCipher.iv)
+            .decryptChars(ByteBuffer.wrap(ciphertext), CharBuffer.allocate(16))
+    }
+
+    private fun roundTrip(plaintext: String): String {
+        val encryptCipher = encryptCipher()
+        // UTF-8 needs at most three bytes per UTF-16 char.
+        val ciphertext = ByteBuffer.allocate(encryptCipher.getOutputSize(plaintext.length * 3))
+        encryptCipher.encryptChars(CharBuffer.wrap(plaintext), ciphertext)
+        ciphertext.flipBuffer()
+
+        val output = CharBuffer.allocate(plaintext.length)
+        decryptCipher(encryptCipher.iv).decryptChars(ciphertext, output)
+        output.flipBuffer()
+        return output.toString()
+    }
+
+    private fun encryptCipher(): Cipher =
+        Cipher.getInstance(TRANSFORMATION).apply { init(Cipher.ENCRYPT_MODE, key) }
+
+    private fun decryptCipher(iv: ByteArray): Cipher =
+        Cipher.getInstance(TRANSFORMATION).apply {
+            init(Cipher.DECRYPT_MODE, key, GCMParameterSpec(128, iv))
+        }
+
+    private companion object {
+        const val TRANSFORMATION = "AES/GCM/NoPadding"
+    }
+}